@@ -0,0 +1,157 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    BlastParsingBenchmark.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+//
+// JMH benchmarks for the blast parsing paths. Compile this directory together with the coarbitrator 
+// sources, with jmh-core and jmh-generator-annprocess on the classpath, then run e.g.
+//
+// java -cp <classes>:<jmh jars> org.openjdk.jmh.Main BlastParsingBenchmark -prof gc
+//
+// -prof gc reports allocation rate (gc.alloc.rate.norm is bytes per op). readReports needs cds.csv and 
+// cdd.versions in the working directory, like ProcessPhase2Results, because ConservedDomainReport loads 
+// them when it is initialized.
+//
+
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlastParsingBenchmark 
+{
+	@Param({ "100000" })
+	public int					nHits;
+	
+	@Param({ "10000" })
+	public int					nQueries;
+	
+	@Param({ "60000" })
+	public int					nPssms;
+	
+	private String[]			csvLines;
+	private String[]			tsvLines;
+	private int					lineIndex;
+	private File				tmpDir;
+	private File				tabularBlastFile;
+	private File				cddVersionsFile;
+	private String				rpsblastText;
+	private byte[]				rpsblastBytes;
+	
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		tmpDir = java.nio.file.Files.createTempDirectory("coarb_bench").toFile();
+		cddVersionsFile = new File(tmpDir, "cdd.versions");
+		SyntheticBlastInputs inputs = new SyntheticBlastInputs(cddVersionsFile, nPssms);
+		csvLines = inputs.csvHitLines(nHits);
+		tsvLines = inputs.tsvHitLines(nHits);
+		tabularBlastFile = new File(tmpDir, "blastp_out.csv");
+		inputs.writeTabularBlast(tabularBlastFile, nHits);
+		rpsblastText = inputs.rpsblastText(nQueries);
+		rpsblastBytes = rpsblastText.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+	}
+	
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		tabularBlastFile.delete();
+		cddVersionsFile.delete();
+		tmpDir.delete();
+	}
+	
+	
+	@Benchmark
+	public TabularBlastHit hitFromCsvLine()
+	{
+		if (++lineIndex == csvLines.length)
+			lineIndex = 0;
+		return new TabularBlastHit(csvLines[lineIndex], ',');
+	}
+	
+	
+	@Benchmark
+	public TabularBlastHit hitFromTsvLine()
+	{
+		if (++lineIndex == tsvLines.length)
+			lineIndex = 0;
+		return new TabularBlastHit(tsvLines[lineIndex], '\t');
+	}
+	
+	
+	// Whole file per op, so divide ops/s by nHits for hits/s.
+	@Benchmark
+	public List<TabularBlastHit> readAll() throws IOException
+	{
+		return TabularBlastReader.readAll(tabularBlastFile);
+	}
+	
+	
+	// All nQueries reports per op, read from memory to leave out disk I/O.
+	@Benchmark
+	public void readReports(Blackhole bh) throws IOException
+	{
+		try
+		(
+			ReversibleBufferedReader rbr = new ReversibleBufferedReader(new StringReader(rpsblastText));
+			ConserverDomainReportReader cdrr = new ConserverDomainReportReader(rbr);
+		)
+		{
+			ConservedDomainReport report;
+			while ((report = cdrr.readReport()) != null)
+				bh.consume(report);
+		}
+	}
+	
+	
+	// As readReports(), but scanning bytes in place as files are read, and refilling 1 compact report.
+	@Benchmark
+	public void readCompactReportsFromBytes(Blackhole bh) throws IOException
+	{
+		try
+		(
+			ByteLineSource lines = new ByteLineSource(new ByteArrayInputStream(rpsblastBytes));
+			ConserverDomainReportReader cdrr = new ConserverDomainReportReader(lines);
+		)
+		{
+			CompactConservedDomainReport report = new CompactConservedDomainReport();
+			while (cdrr.readReport(report))
+				bh.consume(report);
+		}
+	}
+	
+	
+	@Benchmark
+	public CdPssmidToAccAndShortName loadPssmMap() throws IOException
+	{
+		return new CdPssmidToAccAndShortName(cddVersionsFile);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    SyntheticBlastInputs.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Deterministic synthetic inputs for the parsing benchmarks, made by SyntheticCorpusGenerator. Local blastp 
+// writes 12 comma-separated fields, NCBI writes 13 tab-separated fields, rpsblast writes up to 10 hits per 
+// query against "gnl|CDD|<pssm id>" subjects, and cdd.versions has ~60k entries.
+//
+
+
+class SyntheticBlastInputs 
+{
+	private final static int			BLASTP_HITS_PER_QUERY	= 20;
+	
+	private SyntheticCorpusGenerator	generator;
+	
+	
+	// Writes cddVersionsFile, which the rpsblast subjects are drawn from. Uses cds.csv from the working 
+	// directory if it's there.
+	SyntheticBlastInputs(File cddVersionsFile, int nPssms) throws IOException
+	{
+		File cdf = new File("cds.csv");
+		Map<String, ConservedDomainCOIness> accToCOIness = cdf.exists()  ?  PssmCOInessTable.readAccToCOIness(cdf)  :  new HashMap<>();
+		SyntheticCorpusGenerator.writeCddVersions(cddVersionsFile, accToCOIness, nPssms, SyntheticCorpusGenerator.DFLT_SEED);
+		generator = new SyntheticCorpusGenerator(SyntheticCorpusGenerator.DFLT_SEED, accToCOIness, 
+			new CdPssmidToAccAndShortName(cddVersionsFile));
+	}
+	
+	
+	private String blastpText(int nHits) throws IOException
+	{
+		StringWriter sw = new StringWriter();
+		int nQueries = (nHits + BLASTP_HITS_PER_QUERY - 1) / BLASTP_HITS_PER_QUERY;
+		generator.writeBlastp(sw, nQueries, BLASTP_HITS_PER_QUERY, Math.max(1, nHits / 4));
+		return sw.toString();
+	}
+	
+	
+	String[] csvHitLines(int n) throws IOException
+	{
+		return Arrays.copyOf(blastpText(n).split("\n"), n);
+	}
+	
+	
+	// NCBI format: tab-delimited, with a 2nd identity field.
+	String[] tsvHitLines(int n) throws IOException
+	{
+		String[] ret = csvHitLines(n);
+		for (int i=0; i<n; i++)
+		{
+			String[] pieces = ret[i].split(",");
+			StringBuilder sb = new StringBuilder();
+			for (int j=0; j<pieces.length; j++)
+			{
+				if (j > 0)
+					sb.append('\t');
+				sb.append(pieces[j]);
+				if (j == 2)
+					sb.append('\t').append(pieces[j]);
+			}
+			ret[i] = sb.toString();
+		}
+		return ret;
+	}
+	
+	
+	void writeTabularBlast(File f, int nHits) throws IOException
+	{
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(f)))
+		{
+			for (String line: csvHitLines(nHits))
+			{
+				bw.write(line);
+				bw.newLine();
+			}
+		}
+	}
+	
+	
+	String rpsblastText(int nQueries) throws IOException
+	{
+		StringWriter sw = new StringWriter();
+		generator.writeRpsblast(sw, nQueries);
+		return sw.toString();
+	}
+}
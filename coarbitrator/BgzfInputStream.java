@@ -0,0 +1,285 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    BgzfInputStream.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+
+//
+// Reads block-gzipped (BGZF) data, as written by bgzip. BGZF is a series of gzip members, each at most 64K
+// and each recording its own compressed size in a "BC" extra subfield, so blocks can be located without 
+// inflating anything. Raw blocks are read sequentially on the caller's thread and inflated in parallel on a
+// shared pool; a bounded window of blocks is kept in flight, and blocks are delivered in file order.
+//
+
+
+public class BgzfInputStream extends InputStream
+{
+	private final static int					FIXED_HEADER_LEN	= 12;		// through XLEN
+	final static int							MAX_HEADER_LEN		= FIXED_HEADER_LEN + 0xffff;
+	private final static int					MAX_BLOCK_SIZE		= 1 << 16;
+	private final static int					N_INFLATERS			= Runtime.getRuntime().availableProcessors();
+	private final static ExecutorService		INFLATER_POOL;
+	private final static ThreadLocal<Inflater>	INFLATERS			= ThreadLocal.withInitial(() -> new Inflater(true));
+	
+	static
+	{
+		INFLATER_POOL = Executors.newFixedThreadPool(N_INFLATERS, r -> 
+		{
+			Thread t = new Thread(r, "bgzf-inflater");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	private InputStream							src;
+	private ArrayDeque<Future<byte[]>>			inFlight;
+	private int									maxInFlight;
+	private boolean								srcExhausted;
+	private byte[]								block;
+	private int									blockPos;
+	private long								nBlocksRead;
+	
+	
+	public BgzfInputStream(InputStream src)
+	{
+		this(src, 2 * N_INFLATERS);
+	}
+	
+	
+	public BgzfInputStream(InputStream src, int maxInFlight)
+	{
+		this.src = (src instanceof BufferedInputStream)  ?  src  :  new BufferedInputStream(src, MAX_BLOCK_SIZE);
+		this.maxInFlight = Math.max(1, maxInFlight);
+		inFlight = new ArrayDeque<>();
+		block = new byte[0];
+	}
+	
+	
+	// True if the header bytes are the start of a BGZF block: gzip magic, deflate, FEXTRA set, and a 
+	// "BC" subfield anywhere in the extra field. The whole extra field (XLEN bytes after the 12 fixed 
+	// header bytes) must be in header[0..len).
+	public static boolean isBgzfHeader(byte[] header, int len)
+	{
+		return getBlockSize(header, len) > 0;
+	}
+	
+	
+	private static boolean isGzipWithExtra(byte[] header, int len)
+	{
+		return len >= FIXED_HEADER_LEN  &&
+			   (header[0] & 0xff) == 0x1f  &&  (header[1] & 0xff) == 0x8b  &&  header[2] == 8  &&
+			   (header[3] & 4) != 0;
+	}
+	
+	
+	// Total block size (BSIZE + 1) from the BC subfield, or -1 if header isn't a BGZF header. Subfields are
+	// SI1, SI2, SLEN (2 bytes LE), then SLEN bytes of data; BC's data is BSIZE (2 bytes LE).
+	private static int getBlockSize(byte[] header, int len)
+	{
+		if (!isGzipWithExtra(header, len))
+			return -1;
+		int extraEnd = FIXED_HEADER_LEN + readShortLE(header, 10);
+		if (len < extraEnd)
+			return -1;
+		int pos = FIXED_HEADER_LEN;
+		while (pos + 4 <= extraEnd)
+		{
+			int subfieldLen = readShortLE(header, pos + 2);
+			if (header[pos] == 'B'  &&  header[pos+1] == 'C'  &&  subfieldLen == 2  &&  pos + 6 <= extraEnd)
+				return readShortLE(header, pos + 4) + 1;
+			pos += 4 + subfieldLen;
+		}
+		return -1;
+	}
+	
+	
+	public int read() throws IOException
+	{
+		if (!ensureBlock())
+			return -1;
+		return block[blockPos++] & 0xff;
+	}
+	
+	
+	public int read(byte[] buf, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (!ensureBlock())
+			return -1;
+		int n = Math.min(len, block.length - blockPos);
+		System.arraycopy(block, blockPos, buf, off, n);
+		blockPos += n;
+		return n;
+	}
+	
+	
+	public int available()
+	{
+		return block.length - blockPos;
+	}
+	
+	
+	// Makes sure the current block has unread bytes. Skips empty blocks, including the EOF marker block.
+	private boolean ensureBlock() throws IOException
+	{
+		while (blockPos >= block.length)
+		{
+			fillWindow();
+			Future<byte[]> next = inFlight.poll();
+			if (next == null)
+				return false;
+			try
+			{
+				block = next.get();
+			}
+			catch (InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while inflating BGZF block");
+			}
+			catch (ExecutionException x)
+			{
+				Throwable cause = x.getCause();
+				throw (cause instanceof IOException)  ?  (IOException)cause  :  new IOException(cause);
+			}
+			blockPos = 0;
+		}
+		return true;
+	}
+	
+	
+	private void fillWindow() throws IOException
+	{
+		while (!srcExhausted  &&  inFlight.size() < maxInFlight)
+		{
+			byte[] raw = readRawBlock();
+			if (raw == null)
+			{
+				srcExhausted = true;
+				break;
+			}
+			long blockNum = nBlocksRead++;
+			int payloadStart = FIXED_HEADER_LEN + readShortLE(raw, 10);
+			inFlight.add(INFLATER_POOL.submit(() -> inflate(raw, payloadStart, blockNum)));
+		}
+	}
+	
+	
+	// Returns the complete block (header through ISIZE), or null at end of input.
+	private byte[] readRawBlock() throws IOException
+	{
+		byte[] header = new byte[FIXED_HEADER_LEN];
+		int nRead = readFully(header, 0, FIXED_HEADER_LEN);
+		if (nRead == 0)
+			return null;
+		if (!isGzipWithExtra(header, nRead))
+			throw new ZipException("Not a BGZF block header at block " + nBlocksRead);
+		int headerLen = FIXED_HEADER_LEN + readShortLE(header, 10);
+		header = Arrays.copyOf(header, headerLen);
+		if (readFully(header, FIXED_HEADER_LEN, headerLen - FIXED_HEADER_LEN) != headerLen - FIXED_HEADER_LEN)
+			throw new EOFException("Truncated BGZF block header at block " + nBlocksRead);
+		int blockSize = getBlockSize(header, headerLen);
+		if (blockSize < 0)
+			throw new ZipException("No BC subfield in BGZF block header at block " + nBlocksRead);
+		if (blockSize < headerLen + 8)
+			throw new ZipException("BGZF block " + nBlocksRead + " is smaller than its header and trailer");
+		byte[] raw = Arrays.copyOf(header, blockSize);
+		if (readFully(raw, headerLen, blockSize - headerLen) != blockSize - headerLen)
+			throw new EOFException("Truncated BGZF block " + nBlocksRead);
+		return raw;
+	}
+	
+	
+	private int readFully(byte[] buf, int off, int len) throws IOException
+	{
+		int total = 0;
+		while (total < len)
+		{
+			int n = src.read(buf, off + total, len - total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+	
+	
+	// Runs on a pool thread. The deflate payload starts after the extra field.
+	private static byte[] inflate(byte[] raw, int payloadStart, long blockNum) throws IOException
+	{
+		int trailerStart = raw.length - 8;
+		int expectedCrc = readIntLE(raw, trailerStart);
+		int inflatedSize = readIntLE(raw, trailerStart + 4);
+		if (inflatedSize < 0  ||  inflatedSize > MAX_BLOCK_SIZE)
+			throw new ZipException("BGZF block " + blockNum + " has bad ISIZE " + Integer.toUnsignedString(inflatedSize));
+		byte[] ret = new byte[inflatedSize];
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(raw, payloadStart, trailerStart - payloadStart);
+		try
+		{
+			int n = 0;
+			while (n < inflatedSize  &&  !inflater.finished())
+			{
+				int nInflated = inflater.inflate(ret, n, inflatedSize - n);
+				if (nInflated == 0  &&  (inflater.needsInput()  ||  inflater.needsDictionary()))
+					break;
+				n += nInflated;
+			}
+			if (n != inflatedSize)
+				throw new ZipException("BGZF block " + blockNum + " inflated to " + n + " bytes, expected " + inflatedSize);
+		}
+		catch (DataFormatException x)
+		{
+			throw new ZipException("Bad deflate data in BGZF block " + blockNum + ": " + x.getMessage());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(ret, 0, inflatedSize);
+		if ((int)crc.getValue() != expectedCrc)
+			throw new ZipException("CRC mismatch in BGZF block " + blockNum);
+		return ret;
+	}
+	
+	
+	private static int readShortLE(byte[] buf, int off)
+	{
+		return (buf[off] & 0xff) | ((buf[off+1] & 0xff) << 8);
+	}
+	
+	
+	private static int readIntLE(byte[] buf, int off)
+	{
+		return (buf[off] & 0xff) | ((buf[off+1] & 0xff) << 8) | ((buf[off+2] & 0xff) << 16) | ((buf[off+3] & 0xff) << 24);
+	}
+	
+	
+	public void close() throws IOException
+	{
+		for (Future<byte[]> f: inFlight)
+			f.cancel(false);
+		inFlight.clear();
+		src.close();
+	}
+}
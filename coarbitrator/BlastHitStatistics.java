@@ -0,0 +1,139 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    BlastHitStatistics.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+
+//
+// Distinct and heavy-hitter subjects and queries of a tabular blast output, in constant memory, so it works 
+// on the full blastp output. Each instance is about 5 MB, mostly its 2 Count-Min sketches. Statistics for 
+// shards of the output (e.g. per thread, or per machine with the instances serialized) combine with add().
+//
+
+
+public class BlastHitStatistics implements java.io.Serializable
+{
+	private static final long serialVersionUID = 4419283057712093388L;
+	private final static int		N_TOP					= 20;
+	
+	private final HyperLogLogCounter<String>	distinctSubjects	= new HyperLogLogCounter<>();
+	private final HyperLogLogCounter<String>	distinctQueries		= new HyperLogLogCounter<>();
+	private final CountMinCounter<String>		subjectCounts		= new CountMinCounter<>();
+	private final CountMinCounter<String>		queryCounts			= new CountMinCounter<>();
+	private long								nHits;
+	
+	
+	public void accept(TabularBlastHit hit)
+	{
+		distinctSubjects.bumpCountForBin(hit.subject);
+		distinctQueries.bumpCountForBin(hit.query);
+		subjectCounts.bumpCountForBin(hit.subject);
+		queryCounts.bumpCountForBin(hit.query);
+		nHits++;
+	}
+	
+	
+	public void add(BlastHitStatistics that)
+	{
+		distinctSubjects.add(that.distinctSubjects);
+		distinctQueries.add(that.distinctQueries);
+		subjectCounts.add(that.subjectCounts);
+		queryCounts.add(that.queryCounts);
+		nHits += that.nHits;
+	}
+	
+	
+	//
+	// 1 instance per thread that processes hits, rather than 1 per stream leaf as with collect(), so memory 
+	// is bounded by the number of threads however finely a parallel stream splits. Each instance is only 
+	// touched by its own thread; forEach() returning makes all of them visible here. The map is local, so 
+	// nothing stays reachable from pool threads once this returns.
+	//
+	public static BlastHitStatistics collect(Stream<TabularBlastHit> hits)
+	{
+		Map<Thread, BlastHitStatistics> perThread = new ConcurrentHashMap<>();
+		hits.forEach(hit -> 
+		{
+			Thread thread = Thread.currentThread();
+			BlastHitStatistics stats = perThread.get(thread);
+			if (stats == null)
+			{
+				stats = new BlastHitStatistics();
+				perThread.put(thread, stats);
+			}
+			stats.accept(hit);
+		});
+		BlastHitStatistics ret = new BlastHitStatistics();
+		for (BlastHitStatistics stats: perThread.values())
+			ret.add(stats);
+		return ret;
+	}
+	
+	
+	public long getNHits()							{ return nHits; }
+	public long getNDistinctSubjects()				{ return distinctSubjects.size(); }
+	public long getNDistinctQueries()				{ return distinctQueries.size(); }
+	public CountMinCounter<String> getSubjectCounts()	{ return subjectCounts; }
+	public CountMinCounter<String> getQueryCounts()		{ return queryCounts; }
+	
+	
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(nHits + " hits, ~" + getNDistinctSubjects() + " distinct subjects, ~" + 
+			getNDistinctQueries() + " distinct queries");
+		sb.append("\nTop subjects:");
+		for (String subject: subjectCounts.topK(N_TOP))
+			sb.append("\n  " + subject + ": ~" + subjectCounts.getCountForBin(subject));
+		sb.append("\nTop queries:");
+		for (String query: queryCounts.topK(N_TOP))
+			sb.append("\n  " + query + ": ~" + queryCounts.getCountForBin(query));
+		return sb.toString();
+	}
+	
+	
+	private static void sop(Object x)
+	{
+		System.out.println(x);
+	}
+	
+	
+	public static void main(String[] args)
+	{
+		File f = CompressedInputs.resolve(new File(args.length > 0  ?  args[0]  :  "blastp_out.csv"));
+		try
+		(
+			Stream<TabularBlastHit> hits = TabularBlastReader.stream(f);
+		)
+		{
+			sop(collect(hits.parallel()));
+		}
+		catch (UncheckedIOException x)
+		{
+			sop("Trouble reading blast output file " + f.getAbsolutePath() + ":");
+			sop(x.getCause().getMessage());
+			System.exit(10);
+		}
+	}
+}
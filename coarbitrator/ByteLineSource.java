@@ -0,0 +1,201 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ByteLineSource.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+
+//
+// LineSource that finds lines directly in a byte buffer, for input such as blast output. Each byte is 1 char
+// (ISO-8859-1), so scanning needs no decoding. readLine() returns the same CharSequence instance every time, 
+// pointing at the line's bytes in the buffer, so reading a line allocates nothing unless the line is longer 
+// than the buffer. unread() just sets a flag.
+//
+// Lines end with \n or \r\n. A last line with no terminator is still returned.
+//
+// Input is UTF-8, so a non-ASCII character comes through as several chars, 1 per byte. Delimiters are ASCII,
+// so field boundaries are still found correctly. Callers that keep field text decode their copies with
+// decodeUtf8().
+//
+
+
+public class ByteLineSource implements LineSource
+{
+	private final static int		DFLT_BUFFER_SIZE		= 1 << 16;
+	
+	private InputStream				in;
+	private byte[]					buf;
+	private int						pos;			// 1st byte not yet returned in a line
+	private int						limit;			// end of valid bytes in buf
+	private boolean					eof;
+	private boolean					unread;
+	private boolean					haveLine;
+	private final Slice				line = new Slice();
+	
+	
+	public ByteLineSource(InputStream in)
+	{
+		this(in, DFLT_BUFFER_SIZE);
+	}
+	
+	
+	public ByteLineSource(InputStream in, int bufferSize)
+	{
+		this.in = in;
+		buf = new byte[Math.max(bufferSize, 16)];
+	}
+	
+	
+	public ByteLineSource(File f) throws IOException
+	{
+		this(CompressedInputs.openInputStream(f));
+	}
+	
+	
+	public CharSequence readLine() throws IOException
+	{
+		if (unread)
+		{
+			unread = false;
+			return line;
+		}
+		
+		int scanFrom = pos;
+		while (true)
+		{
+			for (int i=scanFrom; i<limit; i++)
+			{
+				if (buf[i] == '\n')
+				{
+					setLine(pos, i);
+					pos = i + 1;
+					return line;
+				}
+			}
+			if (eof)
+			{
+				if (pos == limit)
+				{
+					haveLine = false;
+					return null;
+				}
+				setLine(pos, limit);
+				pos = limit;
+				return line;
+			}
+			scanFrom = limit - pos;
+			fill();
+		}
+	}
+	
+	
+	// Moves the partial line to the front of the buffer, growing it if the partial line fills it, and reads more.
+	private void fill() throws IOException
+	{
+		int nPartial = limit - pos;
+		if (nPartial == buf.length)
+		{
+			byte[] bigger = new byte[2 * buf.length];
+			System.arraycopy(buf, pos, bigger, 0, nPartial);
+			buf = bigger;
+		}
+		else if (pos > 0)
+			System.arraycopy(buf, pos, buf, 0, nPartial);
+		pos = 0;
+		limit = nPartial;
+		int nRead = in.read(buf, limit, buf.length - limit);
+		if (nRead < 0)
+			eof = true;
+		else
+			limit += nRead;
+	}
+	
+	
+	private void setLine(int start, int end)
+	{
+		if (end > start  &&  buf[end-1] == '\r')
+			end--;
+		line.start = start;
+		line.length = end - start;
+		haveLine = true;
+	}
+	
+	
+	// Decodes a copy of line text, whose chars are bytes, as UTF-8. ASCII text is returned as is.
+	static String decodeUtf8(String bytesAsChars)
+	{
+		for (int i=0; i<bytesAsChars.length(); i++)
+			if (bytesAsChars.charAt(i) >= 0x80)
+				return new String(bytesAsChars.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+		return bytesAsChars;
+	}
+	
+	
+	public void unread()
+	{
+		if (!haveLine  ||  unread)
+			throw new IllegalStateException("No line to unread");
+		unread = true;
+	}
+	
+	
+	public void close() throws IOException
+	{
+		in.close();
+	}
+	
+	
+	//
+	// The current line, as a window on buf. Reads buf through the outer instance, so it stays correct if buf
+	// is replaced while growing.
+	//
+	private class Slice implements CharSequence
+	{
+		int							start;
+		int							length;
+		
+		@Override
+		public int length()
+		{
+			return length;
+		}
+		
+		@Override
+		public char charAt(int index)
+		{
+			if (index < 0  ||  index >= length)
+				throw new IndexOutOfBoundsException(index);
+			return (char)(buf[start + index] & 0xFF);
+		}
+		
+		@Override
+		public CharSequence subSequence(int from, int to)
+		{
+			return toString().substring(from, to);
+		}
+		
+		@Override
+		public String toString()
+		{
+			return new String(buf, start, length, StandardCharsets.ISO_8859_1);
+		}
+	}  // End of inner class Slice
+}
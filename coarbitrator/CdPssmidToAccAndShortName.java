@@ -19,8 +19,8 @@
 
 package coarbitrator;
 
+import java.nio.CharBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
 import java.io.*;
 
 
@@ -28,18 +28,52 @@ import java.io.*;
  * The file cdd.versions has been downloaded from NCBI. It maps conserved domain accession number to short name
  * and pssm id. It isn't clear why the pssm id exists, but it's what appears as hit subjects when you do a local
  * rpsblast against Cdd. So this map is a necessary evil.
+ *
+ * There are ~60k entries, so nothing is stored per entry except ints. Pssm ids go in an open-addressing table, 
+ * and accessions and short names are stored back to back in one char pool: entry i's accession starts at 
+ * accOffsets[i], its short name starts at shortNameOffsets[i] and ends at accOffsets[i+1]. Strings are made 
+ * only when asked for; getAccessionView() and getShortNameView() return views of the pool instead.
  */
 
-public class CdPssmidToAccAndShortName extends HashMap<String, Pair<String, String>> implements Serializable
+public class CdPssmidToAccAndShortName implements Serializable
 {
 	private final static File		DFLT_IFILE = new File("data/cdd.versions");
 	private final static File		BACKUP_IFILE = new File("cdd.versions");
+	private final static int		INITIAL_N_ENTRIES = 1 << 16;
 	
 	static int nctors = 0;
 	
+	private int						nEntries;
+	private int[]					pssmIds;			// by entry
+	private int[]					accOffsets;			// by entry, plus 1 for the end of the pool
+	private int[]					shortNameOffsets;	// by entry
+	private char[]					pool;
+	private int						poolSize;
+	private int[]					slots;				// entry + 1, or 0 if empty
+	
+	
 	public CdPssmidToAccAndShortName() throws IOException
 	{
-		File ifile = DFLT_IFILE.exists()  ?  DFLT_IFILE  :  BACKUP_IFILE;
+		this(getDefaultFile());
+	}
+	
+	
+	static File getDefaultFile()
+	{
+		return DFLT_IFILE.exists()  ?  DFLT_IFILE  :  BACKUP_IFILE;
+	}
+	
+	
+	// Lines are accession, short name, pssm id, and version, whitespace-delimited. Lines whose pssm id isn't a
+	// non-negative int are skipped.
+	public CdPssmidToAccAndShortName(File ifile) throws IOException
+	{
+		pssmIds = new int[INITIAL_N_ENTRIES];
+		accOffsets = new int[INITIAL_N_ENTRIES + 1];
+		shortNameOffsets = new int[INITIAL_N_ENTRIES];
+		pool = new char[16 * INITIAL_N_ENTRIES];
+		slots = new int[2 * INITIAL_N_ENTRIES];
+		
 		try
 		(
 				FileReader fr = new FileReader(ifile);
@@ -50,33 +84,208 @@ public class CdPssmidToAccAndShortName extends HashMap<String, Pair<String, Stri
 				br.readLine();
 			
 			String line;
+			int[] tokenBounds = new int[6];
 			while ((line = br.readLine()) != null)
 			{
-				if (line.trim().isEmpty())
+				if (tokenize(line, tokenBounds) < 3)
+					continue;
+				int pssmId = PssmCOInessTable.parseCanonicalId(line, tokenBounds[4], tokenBounds[5]);
+				if (pssmId < 0)
 					continue;
-				String[] pieces = line.split("\\s");
-				List<String> nonWhitePieces =
-					Arrays.stream(pieces)
-					.filter(p -> !p.trim().isEmpty())
-					.collect(Collectors.toList());
-				Pair<String, String> pair = new Pair<>(nonWhitePieces.get(0), nonWhitePieces.get(1));
-				put(nonWhitePieces.get(2), pair);
+				put(pssmId, line, tokenBounds[0], tokenBounds[1], tokenBounds[2], tokenBounds[3]);
 			}
 		}
 	}
 	
 	
+	// Finds the start and end of up to 3 whitespace-delimited tokens. Returns number of tokens found.
+	private static int tokenize(String line, int[] bounds)
+	{
+		int nTokens = 0;
+		int i = 0;
+		int len = line.length();
+		while (nTokens < 3)
+		{
+			while (i < len  &&  Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (i == len)
+				break;
+			bounds[2*nTokens] = i;
+			while (i < len  &&  !Character.isWhitespace(line.charAt(i)))
+				i++;
+			bounds[2*nTokens+1] = i;
+			nTokens++;
+		}
+		return nTokens;
+	}
+	
+	
+	// As with the HashMap this class used to be, a repeated pssm id replaces the earlier entry's strings.
+	private void put(int pssmId, String line, int accStart, int accEnd, int shortNameStart, int shortNameEnd)
+	{
+		int slot = findSlot(pssmId);
+		int entry;
+		if (slots[slot] != 0)
+		{
+			// Replace. The old strings stay in the pool; this is rare.
+			entry = slots[slot] - 1;
+			if (entry != nEntries - 1)
+			{
+				moveToEnd(entry);
+				entry = nEntries - 1;
+			}
+			else
+				poolSize = accOffsets[entry];
+		}
+		else
+		{
+			if (nEntries == pssmIds.length)
+				growEntries();
+			entry = nEntries++;
+			slots[slot] = entry + 1;
+			pssmIds[entry] = pssmId;
+			if (2 * nEntries > slots.length)
+				rehash();
+		}
+		
+		int nChars = (accEnd - accStart) + (shortNameEnd - shortNameStart);
+		if (poolSize + nChars > pool.length)
+			pool = Arrays.copyOf(pool, Math.max(2 * pool.length, poolSize + nChars));
+		accOffsets[entry] = poolSize;
+		line.getChars(accStart, accEnd, pool, poolSize);
+		poolSize += accEnd - accStart;
+		shortNameOffsets[entry] = poolSize;
+		line.getChars(shortNameStart, shortNameEnd, pool, poolSize);
+		poolSize += shortNameEnd - shortNameStart;
+		accOffsets[entry + 1] = poolSize;
+	}
+	
+	
+	// Entry strings are contiguous in the pool, so an entry that gets new strings must be the last one. 
+	// Iteration order of the others is unchanged.
+	private void moveToEnd(int entry)
+	{
+		int pssmId = pssmIds[entry];
+		for (int i=entry; i<nEntries-1; i++)
+		{
+			pssmIds[i] = pssmIds[i+1];
+			accOffsets[i] = accOffsets[i+1];
+			shortNameOffsets[i] = shortNameOffsets[i+1];
+			slots[findSlot(pssmIds[i])] = i + 1;
+		}
+		// The moved entries' strings still end where the next one's start, except the new last slot,
+		// whose end is the end of the pool.
+		accOffsets[nEntries-1] = poolSize;
+		pssmIds[nEntries-1] = pssmId;
+		slots[findSlot(pssmId)] = nEntries;
+	}
+	
+	
+	private void growEntries()
+	{
+		int newLen = 2 * pssmIds.length;
+		pssmIds = Arrays.copyOf(pssmIds, newLen);
+		accOffsets = Arrays.copyOf(accOffsets, newLen + 1);
+		shortNameOffsets = Arrays.copyOf(shortNameOffsets, newLen);
+	}
+	
+	
+	private void rehash()
+	{
+		slots = new int[2 * slots.length];
+		for (int entry=0; entry<nEntries; entry++)
+			slots[findSlot(pssmIds[entry])] = entry + 1;
+	}
+	
+	
+	// Slot holding pssmId, or the empty slot where it would go. Linear probing.
+	private int findSlot(int pssmId)
+	{
+		int mask = slots.length - 1;
+		int h = pssmId * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (slots[slot] != 0  &&  pssmIds[slots[slot] - 1] != pssmId)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+	
+	
+	// -1 if absent.
+	private int entryOf(int pssmId)
+	{
+		return (pssmId < 0)  ?  -1  :  slots[findSlot(pssmId)] - 1;
+	}
+	
+	
+	public boolean containsKey(int pssmId)
+	{
+		return entryOf(pssmId) >= 0;
+	}
+	
+	
+	public boolean containsKey(String pssmId)
+	{
+		return containsKey(PssmCOInessTable.parseCanonicalId(pssmId));
+	}
+	
+	
+	public int size()
+	{
+		return nEntries;
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return nEntries == 0;
+	}
+	
+	
+	// In file order, by the last line for each id.
+	public int[] getPssmIds()
+	{
+		return Arrays.copyOf(pssmIds, nEntries);
+	}
+	
+	
+	// Null if absent. The view shares this map's pool.
+	public CharSequence getAccessionView(int pssmId)
+	{
+		int entry = entryOf(pssmId);
+		return (entry < 0)  ?  null  :  CharBuffer.wrap(pool, accOffsets[entry], shortNameOffsets[entry] - accOffsets[entry]);
+	}
+	
+	
+	public CharSequence getShortNameView(int pssmId)
+	{
+		int entry = entryOf(pssmId);
+		return (entry < 0)  ?  null  :  CharBuffer.wrap(pool, shortNameOffsets[entry], accOffsets[entry+1] - shortNameOffsets[entry]);
+	}
+	
+	
+	public String getAccession(int pssmId)
+	{
+		int entry = entryOf(pssmId);
+		return (entry < 0)  ?  null  :  new String(pool, accOffsets[entry], shortNameOffsets[entry] - accOffsets[entry]);
+	}
+	
+	
+	public String getShortName(int pssmId)
+	{
+		int entry = entryOf(pssmId);
+		return (entry < 0)  ?  null  :  new String(pool, shortNameOffsets[entry], accOffsets[entry+1] - shortNameOffsets[entry]);
+	}
+	
+	
 	public String getAccession(String pssmId)
 	{
-		Pair<String, String> pair = get(pssmId);
-		return (pair != null)  ?  pair.getFirst()  :  null;
+		return getAccession(PssmCOInessTable.parseCanonicalId(pssmId));
 	}
 	
 	
 	public String getShortName(String pssmId)
 	{
-		Pair<String, String> pair = get(pssmId);
-		return (pair != null)  ?  pair.getSecond()  :  null;
+		return getShortName(PssmCOInessTable.parseCanonicalId(pssmId));
 	}
 	
 	
@@ -87,7 +296,7 @@ public class CdPssmidToAccAndShortName extends HashMap<String, Pair<String, Stri
 	{
 		sop("START");
 		CdPssmidToAccAndShortName map = new CdPssmidToAccAndShortName();
-		map.keySet().stream().forEach(k -> sop(k + " " + map.getAccession(k) + "  = " + map.getShortName(k)));
+		Arrays.stream(map.getPssmIds()).forEach(k -> sop(k + " " + map.getAccession(k) + "  = " + map.getShortName(k)));
 		sop("DONE");
 	}
 }
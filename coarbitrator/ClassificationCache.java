@@ -0,0 +1,245 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ClassificationCache.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+
+
+//
+// Bounded memo of classification outcomes, keyed by a canonical signature of a report's hits. Conserved Domain
+// reports for COI proteins are highly repetitive, so many reports can skip the echelon analysis entirely.
+//
+// Classification sees a hit's pssm id only through its COIness, so the signature is the e-value sequence with 
+// each hit's COIness; within an echelon (equal e-values) only the counts matter, so ties are put in COIness 
+// order. This is exact, shares entries among different pssms with the same COIness, and works for 
+// non-numeric subjects. Cached values are threshold-independent outcomes (see ClassificationOutcome), so 
+// one entry serves every threshold.
+//
+// Eviction is segmented LRU: new entries go on probation, and entries hit while on probation are promoted to
+// the protected segment, so one-off signatures can't flush the frequent ones. Lookups and inserts are 
+// synchronized, but a miss is classified outside the lock, so parallel tasks can share 1 cache.
+//
+
+
+public class ClassificationCache 
+{
+	private final static double				PROTECTED_FRACTION		= 0.8;
+	
+	private int								probationCapacity;
+	private int								protectedCapacity;
+	private LinkedHashMap<Signature, ClassificationOutcome>	probation;
+	private LinkedHashMap<Signature, ClassificationOutcome>	protectedSegment;
+	private Signature						probe;
+	private long							nHits;
+	private long							nMisses;
+	private long							nEvictions;
+	
+	
+	public ClassificationCache(int capacity)
+	{
+		if (capacity < 2)
+			throw new IllegalArgumentException("Capacity must be at least 2");
+		protectedCapacity = Math.max(1, (int)(capacity * PROTECTED_FRACTION));
+		probationCapacity = capacity - protectedCapacity;
+		probation = new LinkedHashMap<>(16, 0.75f, true);
+		protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+		probe = new Signature();
+	}
+	
+	
+	//
+	// Hits are packed 2 longs per hit: e-value bits, then COIness ordinal. The probe instance is refilled for
+	// each lookup, so hits allocate nothing; a copy is made only when inserting.
+	//
+	private static class Signature
+	{
+		long[]				packed = new long[32];
+		int					len;
+		int					hash;
+		
+		
+		void fill(CompactConservedDomainReport report)
+		{
+			int n = report.size();
+			if (packed.length < 2*n)
+				packed = new long[4*n];
+			len = 2 * n;
+			for (int i=0; i<n; i++)
+			{
+				packed[2*i] = Double.doubleToLongBits(report.getE(i));
+				packed[2*i+1] = report.getCOIness(i).ordinal();
+			}
+			// Canonical order within ties: insertion sort by COIness, runs are tiny.
+			for (int i=1; i<n; i++)
+			{
+				long eBits = packed[2*i];
+				long code = packed[2*i+1];
+				int j = i - 1;
+				while (j >= 0  &&  packed[2*j] == eBits  &&  packed[2*j+1] > code)
+				{
+					packed[2*j+3] = packed[2*j+1];
+					j--;
+				}
+				packed[2*j+3] = code;
+			}
+			long h = 1;
+			for (int i=0; i<len; i++)
+				h = 31*h + packed[i];
+			hash = (int)(h ^ (h >>> 32));
+		}
+		
+		
+		Signature copy()
+		{
+			Signature ret = new Signature();
+			ret.packed = Arrays.copyOf(packed, len);
+			ret.len = len;
+			ret.hash = hash;
+			return ret;
+		}
+		
+		
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		
+		public boolean equals(Object x)
+		{
+			if (!(x instanceof Signature))
+				return false;
+			Signature that = (Signature)x;
+			if (this.hash != that.hash  ||  this.len != that.len)
+				return false;
+			for (int i=0; i<len; i++)
+				if (this.packed[i] != that.packed[i])
+					return false;
+			return true;
+		}
+	}  // End of static inner class Signature
+	
+	
+	// Returns the cached outcome for the report's signature, computing and caching it on a miss.
+	public ClassificationOutcome getOutcome(CompactConservedDomainReport report)
+	{
+		Signature key;
+		synchronized (this)
+		{
+			ClassificationOutcome outcome = lookUp(report);
+			if (outcome != null)
+				return outcome;
+			nMisses++;
+			key = probe.copy();
+		}
+		
+		// 2 threads can miss on the same signature at once. Both compute the same outcome, and only the 1st 
+		// is inserted.
+		report.computeOutcome();
+		ClassificationOutcome outcome = report.getOutcome();
+		synchronized (this)
+		{
+			if (!protectedSegment.containsKey(key)  &&  !probation.containsKey(key))
+				putOnProbation(key, outcome);
+		}
+		return outcome;
+	}
+	
+	
+	// Null on a miss. Caller must hold the lock.
+	private ClassificationOutcome lookUp(CompactConservedDomainReport report)
+	{
+		probe.fill(report);
+		ClassificationOutcome outcome = protectedSegment.get(probe);
+		if (outcome != null)
+		{
+			nHits++;
+			return outcome;
+		}
+		outcome = probation.remove(probe);
+		if (outcome != null)
+		{
+			// 2nd hit: promote. The protected segment's LRU entry gets a 2nd chance on probation.
+			nHits++;
+			Signature key = probe.copy();
+			protectedSegment.put(key, outcome);
+			if (protectedSegment.size() > protectedCapacity)
+			{
+				Iterator<Map.Entry<Signature, ClassificationOutcome>> iter = protectedSegment.entrySet().iterator();
+				Map.Entry<Signature, ClassificationOutcome> demoted = iter.next();
+				iter.remove();
+				putOnProbation(demoted.getKey(), demoted.getValue());
+			}
+			return outcome;
+		}
+		return null;
+	}
+	
+	
+	private void putOnProbation(Signature key, ClassificationOutcome outcome)
+	{
+		probation.put(key, outcome);
+		if (probation.size() > probationCapacity)
+		{
+			Iterator<Signature> iter = probation.keySet().iterator();
+			iter.next();
+			iter.remove();
+			nEvictions++;
+		}
+	}
+	
+	
+	public synchronized long getNHits()
+	{
+		return nHits;
+	}
+	
+	
+	public synchronized long getNMisses()
+	{
+		return nMisses;
+	}
+	
+	
+	public synchronized long getNEvictions()
+	{
+		return nEvictions;
+	}
+	
+	
+	public synchronized double getHitRate()
+	{
+		long nLookups = nHits + nMisses;
+		return (nLookups == 0)  ?  0  :  (double)nHits / nLookups;
+	}
+	
+	
+	public synchronized int size()
+	{
+		return probation.size() + protectedSegment.size();
+	}
+	
+	
+	public synchronized String toString()
+	{
+		return String.format("%d hits, %d misses (hit rate %.2f%%), %d evictions, %d entries", 
+			nHits, nMisses, 100*getHitRate(), nEvictions, size());
+	}
+}
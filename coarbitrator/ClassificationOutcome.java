@@ -0,0 +1,148 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ClassificationOutcome.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+
+//
+// The threshold-independent part of classifying a Conserved Domain report: everything the echelon analysis 
+// decides before the superiority threshold is consulted. Evaluating an outcome against a threshold gives the 
+// same call and superiority bound as classifyForSuperiorityThreshold() with that threshold, so a report can be 
+// analyzed once and evaluated against any number of thresholds.
+//
+// Every shape accepts at exactly the thresholds <= getMaxAcceptingThreshold(), which makes threshold sweeps 
+// a binary search per report.
+//
+
+
+public class ClassificationOutcome 
+{
+	public enum Shape
+	{
+		REJECT,					// Never accepted. Bound doesn't depend on threshold (NaN for an empty report).
+		ACCEPT_AT_THRESHOLD,	// Accepted iff bound >= threshold. Bound doesn't depend on threshold.
+		SINGLE_NEGATIVE,		// 1 NEGATIVE echelon. Never accepted; bound is negated once it reaches the threshold.
+		SINGLE_UNINFORMATIVE;	// 1 UNINFORMATIVE echelon. Accepted iff bound >= threshold, bound > 25, and
+								// positive by non-minority; otherwise bound becomes -MAX_SUPERIORITY once it
+								// reaches the threshold.
+	}
+	
+	
+	private final Shape				shape;
+	private final double			bound;
+	private final boolean			positiveByNonMinority;
+	
+	
+	public ClassificationOutcome(Shape shape, double bound, boolean positiveByNonMinority)
+	{
+		this.shape = shape;
+		this.bound = bound;
+		this.positiveByNonMinority = positiveByNonMinority;
+	}
+	
+	
+	public Shape getShape()
+	{
+		return shape;
+	}
+	
+	
+	// The bound as computed before any threshold-dependent adjustment.
+	public double getRawBound()
+	{
+		return bound;
+	}
+	
+	
+	public boolean isPositiveByNonMinority()
+	{
+		return positiveByNonMinority;
+	}
+	
+	
+	public boolean callFor(double superiorityThresh)
+	{
+		return callFor(shape, bound, positiveByNonMinority, superiorityThresh);
+	}
+	
+	
+	public double boundFor(double superiorityThresh)
+	{
+		return boundFor(shape, bound, positiveByNonMinority, superiorityThresh);
+	}
+	
+	
+	// -Infinity if never accepted.
+	public double getMaxAcceptingThreshold()
+	{
+		return getMaxAcceptingThreshold(shape, bound, positiveByNonMinority);
+	}
+	
+	
+	//
+	// Static forms, for callers that hold the fields themselves to avoid allocating an outcome per report.
+	//
+	static boolean callFor(Shape shape, double bound, boolean positiveByNonMinority, double superiorityThresh)
+	{
+		return superiorityThresh <= getMaxAcceptingThreshold(shape, bound, positiveByNonMinority);
+	}
+	
+	
+	static double boundFor(Shape shape, double bound, boolean positiveByNonMinority, double superiorityThresh)
+	{
+		switch (shape)
+		{
+			case SINGLE_NEGATIVE:
+				return (bound < superiorityThresh)  ?  bound  :  -bound;
+			case SINGLE_UNINFORMATIVE:
+				if (bound < superiorityThresh)
+					return bound;
+				return isStrongMajority(bound, positiveByNonMinority)  ?  bound  :  -ConservedDomainReport.MAX_SUPERIORITY;
+			default:
+				return bound;
+		}
+	}
+	
+	
+	static double getMaxAcceptingThreshold(Shape shape, double bound, boolean positiveByNonMinority)
+	{
+		switch (shape)
+		{
+			case ACCEPT_AT_THRESHOLD:
+				return bound;
+			case SINGLE_UNINFORMATIVE:
+				return isStrongMajority(bound, positiveByNonMinority)  ?  bound  :  Double.NEGATIVE_INFINITY;
+			default:
+				return Double.NEGATIVE_INFINITY;
+		}
+	}
+	
+	
+	// Accept if mostly positive and very strong e-value.
+	private static boolean isStrongMajority(double bound, boolean positiveByNonMinority)
+	{
+		return bound > 25  &&  positiveByNonMinority;
+	}
+	
+	
+	public String toString()
+	{
+		return shape + " bound=" + bound + (shape == Shape.SINGLE_UNINFORMATIVE  ?  " posByNonMinority=" + positiveByNonMinority  :  "");
+	}
+}
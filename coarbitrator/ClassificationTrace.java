@@ -0,0 +1,379 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ClassificationTrace.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+import coarbitrator.ConservedDomainReport.EchelonType;
+
+
+//
+// Structured record of how a report was classified: how each echelon was typed, retyped, or dropped, which 
+// rule decided the call, and which e-values the superiority bound came from. Recording only stores primitives 
+// and references; accession lookups and string building wait until toText() or toJson() is called. Lookups 
+// use the reference tables that classified the report, not whatever version is current then. Reports 
+// hold a null trace unless one is set, and every recording site is guarded by a null check, so a disabled 
+// trace costs one branch per step.
+//
+// A trace can be cleared and reused for the next query. Not thread safe.
+//
+
+
+public class ClassificationTrace 
+{
+	enum Rule
+	{
+		EMPTY_REPORT, NO_SURVIVING_ECHELONS, SINGLE_ECHELON, SINGLE_ECHELON_TYPE, TOP_ECHELON_NEGATIVE, 
+		TOP_ECHELON_POSITIVE, CACHED
+	}
+	
+	
+	private enum Step
+	{
+		ECHELON, RETYPED, DROPPED, RULE, SUPERIORITY, OUTCOME, CALL
+	}
+	
+	
+	// One step. Which fields are meaningful depends on the step.
+	private static class Event
+	{
+		Step					step;
+		double					e;
+		EchelonType				type;
+		EchelonType				prevType;
+		String[]				cds;
+		int[]					pssmIds;
+		String[]				subjects;		// null unless some pssmIds are -1
+		String					reason;
+		Rule					rule;
+		double					worseE;
+		double					bound;
+		ClassificationOutcome.Shape		shape;
+		Boolean					call;
+		
+		Event(Step step)
+		{
+			this.step = step;
+		}
+	}  // End of static inner class Event
+	
+	
+	private String						query;
+	private ReferenceData				referenceData;
+	private List<Event>					events;
+	
+	
+	public ClassificationTrace()
+	{
+		events = new ArrayList<>();
+	}
+	
+	
+	public void clear(String query)
+	{
+		this.query = query;
+		referenceData = null;
+		events.clear();
+	}
+	
+	
+	public String getQuery()
+	{
+		return query;
+	}
+	
+	
+	// The reference tables used for classification.
+	void referenceData(ReferenceData referenceData)
+	{
+		this.referenceData = referenceData;
+	}
+	
+	
+	public long getReferenceVersion()
+	{
+		return (referenceData == null)  ?  0  :  referenceData.getVersion();
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return events.isEmpty();
+	}
+	
+	
+	void echelon(double e, Collection<String> cds, EchelonType type)
+	{
+		Event ev = add(Step.ECHELON, e, type);
+		ev.cds = cds.toArray(new String[cds.size()]);
+	}
+	
+	
+	// Members are pssmIds[from..to). Where a pssm id is -1, subjects has the subject as read.
+	void echelon(double e, int[] pssmIds, String[] subjects, int from, int to, EchelonType type)
+	{
+		Event ev = add(Step.ECHELON, e, type);
+		ev.pssmIds = Arrays.copyOfRange(pssmIds, from, to);
+		for (int i=from; i<to; i++)
+		{
+			if (pssmIds[i] < 0)
+			{
+				ev.subjects = Arrays.copyOfRange(subjects, from, to);
+				break;
+			}
+		}
+	}
+	
+	
+	void retyped(double e, EchelonType prevType, EchelonType type, String reason)
+	{
+		Event ev = add(Step.RETYPED, e, type);
+		ev.prevType = prevType;
+		ev.reason = reason;
+	}
+	
+	
+	void dropped(double e, EchelonType type)
+	{
+		add(Step.DROPPED, e, type);
+	}
+	
+	
+	void rule(Rule rule)
+	{
+		add(Step.RULE, Double.NaN, null).rule = rule;
+	}
+	
+	
+	// WorseE is NaN if the bound came from betterE alone.
+	void superiority(double betterE, double worseE, double bound)
+	{
+		Event ev = add(Step.SUPERIORITY, betterE, null);
+		ev.worseE = worseE;
+		ev.bound = bound;
+	}
+	
+	
+	void outcome(ClassificationOutcome.Shape shape, double bound)
+	{
+		Event ev = add(Step.OUTCOME, Double.NaN, null);
+		ev.shape = shape;
+		ev.bound = bound;
+	}
+	
+	
+	// Bound is NaN if none.
+	void call(Boolean call, double bound)
+	{
+		Event ev = add(Step.CALL, Double.NaN, null);
+		ev.call = call;
+		ev.bound = bound;
+	}
+	
+	
+	private Event add(Step step, double e, EchelonType type)
+	{
+		Event ev = new Event(step);
+		ev.e = e;
+		ev.type = type;
+		events.add(ev);
+		return ev;
+	}
+	
+	
+	private static String[] membersOf(Event ev)
+	{
+		if (ev.cds != null)
+			return ev.cds;
+		String[] ret = new String[ev.pssmIds.length];
+		for (int i=0; i<ret.length; i++)
+		{
+			if (ev.pssmIds[i] >= 0)
+				ret[i] = String.valueOf(ev.pssmIds[i]);
+			else
+				ret[i] = (ev.subjects[i] != null)  ?  ev.subjects[i]  :  "?";
+		}
+		return ret;
+	}
+	
+	
+	// Null if unknown, or if no reference tables were recorded.
+	private String getAccession(String cd)
+	{
+		return (referenceData == null)  ?  null  :  referenceData.getAccession(cd);
+	}
+	
+	
+	public String toText()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("Query = ").append(query).append(" (reference version ").append(getReferenceVersion()).append(")\n");
+		for (Event ev: events)
+		{
+			switch (ev.step)
+			{
+				case ECHELON:
+					sb.append("  echelon e=").append(ev.e).append(' ').append(ev.type).append(':');
+					for (String cd: membersOf(ev))
+					{
+						sb.append(' ').append(cd);
+						String acc = getAccession(cd);
+						if (acc != null)
+							sb.append('=').append(acc);
+					}
+					break;
+				case RETYPED:
+					sb.append("  retyped e=").append(ev.e).append(' ').append(ev.prevType).append(" -> ").append(ev.type)
+					  .append(" (").append(ev.reason).append(')');
+					break;
+				case DROPPED:
+					sb.append("  dropped e=").append(ev.e).append(' ').append(ev.type);
+					break;
+				case RULE:
+					sb.append("  rule ").append(ev.rule);
+					break;
+				case SUPERIORITY:
+					sb.append("  superiority ").append(ev.bound).append(" from e=").append(ev.e);
+					if (!Double.isNaN(ev.worseE))
+						sb.append(" vs e=").append(ev.worseE);
+					break;
+				case OUTCOME:
+					sb.append("  outcome ").append(ev.shape).append(" bound=").append(ev.bound);
+					break;
+				case CALL:
+					sb.append("  call ").append(ev.call);
+					if (!Double.isNaN(ev.bound))
+						sb.append(" SUPERIORITY = ").append(ev.bound);
+					break;
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+	
+	
+	// One line, no trailing newline.
+	public String toJson()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"query\":");
+		appendJsonString(sb, query);
+		sb.append(",\"referenceVersion\":").append(getReferenceVersion());
+		sb.append(",\"steps\":[");
+		for (int i=0; i<events.size(); i++)
+		{
+			Event ev = events.get(i);
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"step\":\"").append(ev.step).append('"');
+			switch (ev.step)
+			{
+				case ECHELON:
+					appendJsonNumber(sb.append(",\"e\":"), ev.e);
+					sb.append(",\"type\":\"").append(ev.type).append("\",\"members\":[");
+					String[] members = membersOf(ev);
+					for (int j=0; j<members.length; j++)
+					{
+						if (j > 0)
+							sb.append(',');
+						sb.append("{\"cd\":");
+						appendJsonString(sb, members[j]);
+						sb.append(",\"accession\":");
+						appendJsonString(sb, getAccession(members[j]));
+						sb.append('}');
+					}
+					sb.append(']');
+					break;
+				case RETYPED:
+					appendJsonNumber(sb.append(",\"e\":"), ev.e);
+					sb.append(",\"from\":\"").append(ev.prevType).append("\",\"to\":\"").append(ev.type).append("\",\"reason\":");
+					appendJsonString(sb, ev.reason);
+					break;
+				case DROPPED:
+					appendJsonNumber(sb.append(",\"e\":"), ev.e);
+					sb.append(",\"type\":\"").append(ev.type).append('"');
+					break;
+				case RULE:
+					sb.append(",\"rule\":\"").append(ev.rule).append('"');
+					break;
+				case SUPERIORITY:
+					appendJsonNumber(sb.append(",\"betterE\":"), ev.e);
+					appendJsonNumber(sb.append(",\"worseE\":"), ev.worseE);
+					appendJsonNumber(sb.append(",\"bound\":"), ev.bound);
+					break;
+				case OUTCOME:
+					sb.append(",\"shape\":\"").append(ev.shape).append('"');
+					appendJsonNumber(sb.append(",\"bound\":"), ev.bound);
+					break;
+				case CALL:
+					sb.append(",\"call\":").append(ev.call);
+					appendJsonNumber(sb.append(",\"bound\":"), ev.bound);
+					break;
+			}
+			sb.append('}');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+	
+	
+	// JSON has no NaN or infinities.
+	private static void appendJsonNumber(StringBuilder sb, double d)
+	{
+		if (Double.isNaN(d)  ||  Double.isInfinite(d))
+			sb.append("null");
+		else
+			sb.append(d);
+	}
+	
+	
+	private static void appendJsonString(StringBuilder sb, String s)
+	{
+		if (s == null)
+		{
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i=0; i<s.length(); i++)
+		{
+			char ch = s.charAt(i);
+			switch (ch)
+			{
+				case '"':		sb.append("\\\"");		break;
+				case '\\':		sb.append("\\\\");		break;
+				case '\n':		sb.append("\\n");		break;
+				case '\r':		sb.append("\\r");		break;
+				case '\t':		sb.append("\\t");		break;
+				default:
+					if (ch < 0x20)
+						sb.append(String.format("\\u%04x", (int)ch));
+					else
+						sb.append(ch);
+			}
+		}
+		sb.append('"');
+	}
+	
+	
+	public String toString()
+	{
+		return toText();
+	}
+}
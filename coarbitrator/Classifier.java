@@ -0,0 +1,245 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    Classifier.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+
+//
+// Classifies Conserved Domain reports against explicit reference data and a fixed superiority threshold. 
+// Immutable after construction, with no static state, so any number of classifiers (e.g. for different
+// reference versions or thresholds) can be used at once, from any number of threads. Each call works on 
+// its own scratch report and returns an immutable Result; calls give the same call and superiority bound
+// as ConservedDomainReport.classifyForSuperiorityThreshold().
+//
+
+
+public final class Classifier 
+{
+	private final ReferenceData					referenceData;
+	private final double						superiorityThreshold;
+	
+	
+	public Classifier(ReferenceData referenceData, double superiorityThreshold)
+	{
+		this.referenceData = Objects.requireNonNull(referenceData);
+		this.superiorityThreshold = superiorityThreshold;
+	}
+	
+	
+	// Reference data is versioned 1.
+	public static Classifier fromFiles(File cdf, File cddVersionsf, double superiorityThreshold) throws IOException
+	{
+		return new Classifier(new ReferenceData(1, ReferenceSnapshot.load(cdf, cddVersionsf)), superiorityThreshold);
+	}
+	
+	
+	public ReferenceData getReferenceData()
+	{
+		return referenceData;
+	}
+	
+	
+	public double getSuperiorityThreshold()
+	{
+		return superiorityThreshold;
+	}
+	
+	
+	// One rpsblast hit. Subject can be as in rpsblast output ("gnl|CDD|238833"), a pssm id, or an accession.
+	public static final class Hit
+	{
+		private final String			subject;
+		private final double			e;
+		
+		public Hit(String subject, double e)
+		{
+			this.subject = Objects.requireNonNull(subject);
+			this.e = e;
+		}
+		
+		public String getSubject()		{ return subject; }
+		public double getE()			{ return e; }
+	}  // End of static inner class Hit
+	
+	
+	// A query's hits, in any order.
+	public static final class Query
+	{
+		private final String			name;
+		private final List<Hit>			hits;
+		
+		public Query(String name, List<Hit> hits)
+		{
+			this.name = Objects.requireNonNull(name);
+			this.hits = Collections.unmodifiableList(new ArrayList<>(hits));
+		}
+		
+		public String getName()			{ return name; }
+		public List<Hit> getHits()		{ return hits; }
+	}  // End of static inner class Query
+	
+	
+	public static final class Result
+	{
+		private final String					query;
+		private final boolean					call;
+		private final double					superiorityBound;
+		private final ClassificationOutcome		outcome;
+		private final long						referenceVersion;
+		
+		private Result(String query, ClassificationOutcome outcome, double superiorityThresh, long referenceVersion)
+		{
+			this.query = query;
+			this.outcome = outcome;
+			this.call = outcome.callFor(superiorityThresh);
+			this.superiorityBound = outcome.boundFor(superiorityThresh);
+			this.referenceVersion = referenceVersion;
+		}
+		
+		public String getQuery()						{ return query; }
+		public boolean isCOI()							{ return call; }
+		public double getSuperiorityBound()				{ return superiorityBound; }	// NaN if none
+		public ClassificationOutcome getOutcome()		{ return outcome; }
+		public long getReferenceVersion()				{ return referenceVersion; }
+		
+		public String toString()
+		{
+			return query + ": " + (call  ?  "COI"  :  "not COI") + ", superiority " + superiorityBound + 
+				", reference version " + referenceVersion;
+		}
+	}  // End of static inner class Result
+	
+	
+	//
+	// If a subject appears more than once, the last e-value wins, as when reading rpsblast output. Query is 
+	// normalized as in ConservedDomainReport.
+	//
+	public Result classify(String query, List<Hit> hits)
+	{
+		// Dedupe, then stable sort by e-value.
+		Map<String, Double> subjToE = new LinkedHashMap<>();
+		for (Hit hit: hits)
+			subjToE.put(canonicalSubject(hit.subject), hit.e);
+		List<Map.Entry<String, Double>> sorted = new ArrayList<>(subjToE.entrySet());
+		sorted.sort(Map.Entry.comparingByValue());
+		
+		CompactConservedDomainReport report = new CompactConservedDomainReport();
+		report.reset(query, referenceData);
+		for (Map.Entry<String, Double> entry: sorted)
+		{
+			String subj = entry.getKey();
+			int pssmId = PssmCOInessTable.parseCanonicalId(subj);
+			ConservedDomainCOIness ness = (pssmId >= 0)  ?  referenceData.getCOIness(pssmId)  :  referenceData.getCOIness(subj);
+			report.addHit(pssmId, subj, ness, entry.getValue());
+		}
+		report.computeOutcome();
+		return new Result(report.getQuery(), report.getOutcome(), superiorityThreshold, referenceData.getVersion());
+	}
+	
+	
+	public Result classify(Query query)
+	{
+		return classify(query.name, query.hits);
+	}
+	
+	
+	// The returned stream is parallel if queries is.
+	public Stream<Result> classifyAll(Stream<Query> queries)
+	{
+		return queries.map(this::classify);
+	}
+	
+	
+	// After the last '|', and without a "CDD:" prefix, as in ConserverDomainReportReader.
+	private static String canonicalSubject(String subj)
+	{
+		int start = subj.lastIndexOf('|') + 1;
+		if (subj.startsWith("CDD:", start))
+			start += 4;
+		return (start == 0)  ?  subj  :  subj.substring(start);
+	}
+	
+	
+	// Streams the queries in an rpsblast output file. Close the stream to close the file.
+	public static Stream<Query> readQueries(File rpsoutf) throws IOException
+	{
+		ConserverDomainReportReader cdrr = new ConserverDomainReportReader(rpsoutf);
+		Spliterator<Query> spliter = new Spliterators.AbstractSpliterator<Query>(Long.MAX_VALUE, 
+			Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE)
+		{
+			public boolean tryAdvance(Consumer<? super Query> action)
+			{
+				try
+				{
+					if (!cdrr.readBlock())
+						return false;
+				}
+				catch (IOException x)
+				{
+					throw new UncheckedIOException(x);
+				}
+				List<Hit> hits = new ArrayList<>(cdrr.getBlockSize());
+				for (int rank=0; rank<cdrr.getBlockSize(); rank++)
+					hits.add(new Hit(cdrr.getBlockSubject(rank), cdrr.getBlockE(rank)));
+				action.accept(new Query(cdrr.getBlockQuery(), hits));
+				return true;
+			}
+		};
+		return StreamSupport.stream(spliter, false).onClose(() -> 
+		{
+			try
+			{
+				cdrr.close();
+			}
+			catch (IOException x)
+			{
+				throw new UncheckedIOException(x);
+			}
+		});
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	// Classifies an rpsblast output file in parallel, and writes accepted queries as Phase 2 does.
+	public static void main(String[] args) throws IOException
+	{
+		sop("START");
+		File rpsoutf = CompressedInputs.resolve(new File(args.length > 0  ?  args[0]  :  "rpsblast_out.csv"));
+		File outf = new File(args.length > 1  ?  args[1]  :  "classifier_out.csv");
+		Classifier classifier = fromFiles(PssmCOInessTable.getDefaultFile(), CdPssmidToAccAndShortName.getDefaultFile(), 0.9);
+		List<String> accepted;
+		try (Stream<Query> queries = readQueries(rpsoutf))
+		{
+			accepted = classifier.classifyAll(queries.parallel())
+				.filter(Result::isCOI)
+				.map(Result::getQuery)
+				.collect(Collectors.toList());
+		}
+		ProcessPhase2Results.writeAcceptedQueries(outf, accepted);
+		sop(accepted.size() + " accepted, " + classifier.getReferenceData());
+		sop("DONE");
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    CompactConservedDomainReport.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+import coarbitrator.ConservedDomainReport.EchelonType;
+
+
+//
+// Array-backed alternative to ConservedDomainReport. Holds numeric pssm ids, their COIness, and e-values in 
+// parallel arrays, sorted by increasing e-value, and computes echelons with a linear scan over runs of equal 
+// e-values instead of building maps, counters, and sets. No boxing. Gives the same call and superiority bound 
+// as ConservedDomainReport.classifyForSuperiorityThreshold(). The threshold-independent work is done by 
+// computeOutcome(), which ThresholdSweep uses to evaluate many thresholds at once.
+//
+// Instances are reusable: ConserverDomainReportReader.readReport(CompactConservedDomainReport) refills one 
+// per query. An instance must not be shared between threads.
+//
+
+
+public class CompactConservedDomainReport 
+{
+	private final static int				INITIAL_CAPACITY		= 16;
+	
+	private String							query;
+	private int								nHits;
+	private int[]							pssmIds;			// -1 if subject wasn't numeric
+	private String[]						subjects;			// set only where pssmIds is -1, for traces
+	private ConservedDomainCOIness[]		coiness;
+	private double[]						es;
+	
+	// Echelon scratch space.
+	private int								nEchelons;
+	private double[]						echelonEs;
+	private EchelonType[]					echelonTypes;
+	private int[]							echelonNPos;
+	private int[]							echelonNNeg;
+	
+	private ClassificationOutcome.Shape		outcomeShape;
+	private double							outcomeBound;
+	private boolean							outcomePositiveByNonMinority;
+	
+	private boolean							classified;
+	private boolean							call;
+	private double							superiorityBound;	// NaN if none
+	private ClassificationTrace				trace;				// null unless tracing
+	private ReferenceData					referenceData;		// tables that gave the COIness values
+	
+	
+	public CompactConservedDomainReport()
+	{
+		pssmIds = new int[INITIAL_CAPACITY];
+		subjects = new String[INITIAL_CAPACITY];
+		coiness = new ConservedDomainCOIness[INITIAL_CAPACITY];
+		es = new double[INITIAL_CAPACITY];
+		echelonEs = new double[INITIAL_CAPACITY];
+		echelonTypes = new EchelonType[INITIAL_CAPACITY];
+		echelonNPos = new int[INITIAL_CAPACITY];
+		echelonNNeg = new int[INITIAL_CAPACITY];
+		superiorityBound = Double.NaN;
+	}
+	
+	
+	void reset(String query, ReferenceData referenceData)
+	{
+		this.referenceData = referenceData;
+		this.query = ConservedDomainReport.normalizeQuery(query);
+		nHits = 0;
+		outcomeShape = null;
+		classified = false;
+		call = false;
+		superiorityBound = Double.NaN;
+		if (trace != null)
+		{
+			trace.clear(this.query);
+			trace.referenceData(referenceData);
+		}
+	}
+	
+	
+	// Hits must be added in non-decreasing e-value order. Subject is only kept if pssmId is -1, and may be null
+	// otherwise.
+	void addHit(int pssmId, String subject, ConservedDomainCOIness ness, double e)
+	{
+		assert nHits == 0  ||  Double.compare(es[nHits-1], e) <= 0  :  "Hits out of order for " + query;
+		if (nHits == es.length)
+			grow();
+		pssmIds[nHits] = pssmId;
+		subjects[nHits] = (pssmId < 0)  ?  subject  :  null;
+		coiness[nHits] = ness;
+		es[nHits] = e;
+		nHits++;
+	}
+	
+	
+	private void grow()
+	{
+		int newLen = 2 * es.length;
+		pssmIds = Arrays.copyOf(pssmIds, newLen);
+		subjects = Arrays.copyOf(subjects, newLen);
+		coiness = Arrays.copyOf(coiness, newLen);
+		es = Arrays.copyOf(es, newLen);
+		echelonEs = new double[newLen];
+		echelonTypes = new EchelonType[newLen];
+		echelonNPos = new int[newLen];
+		echelonNNeg = new int[newLen];
+	}
+	
+	
+	public String getQuery()
+	{
+		return query;
+	}
+	
+	
+	public int size()
+	{
+		return nHits;
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return nHits == 0;
+	}
+	
+	
+	public int getPssmId(int rank)
+	{
+		return pssmIds[rank];
+	}
+	
+	
+	public double getE(int rank)
+	{
+		return es[rank];
+	}
+	
+	
+	public ConservedDomainCOIness getCOIness(int rank)
+	{
+		return coiness[rank];
+	}
+	
+	
+	// The trace is cleared by each reset(), so render it before reading the next report.
+	public void setTrace(ClassificationTrace trace)
+	{
+		this.trace = trace;
+		if (trace != null)
+		{
+			trace.clear(query);
+			trace.referenceData(referenceData);
+		}
+	}
+	
+	
+	public ClassificationTrace getTrace()
+	{
+		return trace;
+	}
+	
+	
+	// Version of the reference tables that the hits' COIness came from.
+	public long getReferenceVersion()
+	{
+		return (referenceData == null)  ?  0  :  referenceData.getVersion();
+	}
+	
+	
+	// Null before the 1st reset().
+	ReferenceData getReferenceData()
+	{
+		return referenceData;
+	}
+	
+	
+	// Null until classified, like ConservedDomainReport.
+	public Boolean getCall()
+	{
+		return classified  ?  call  :  null;
+	}
+	
+	
+	public boolean isCOI()
+	{
+		return call;
+	}
+	
+	
+	// NaN where ConservedDomainReport would have a null bound.
+	public double getSuperiorityBound()
+	{
+		return superiorityBound;
+	}
+	
+	
+	public CompactConservedDomainReport classifyForSuperiorityThreshold(double superiorityThresh)
+	{
+		computeOutcome();
+		call = ClassificationOutcome.callFor(outcomeShape, outcomeBound, outcomePositiveByNonMinority, superiorityThresh);
+		superiorityBound = ClassificationOutcome.boundFor(outcomeShape, outcomeBound, outcomePositiveByNonMinority, superiorityThresh);
+		classified = true;
+		if (trace != null)
+			trace.call(call, superiorityBound);
+		return this;
+	}
+	
+	
+	// Takes the outcome from the cache when this report's signature is there, skipping the echelon analysis.
+	public CompactConservedDomainReport classifyForSuperiorityThreshold(double superiorityThresh, ClassificationCache cache)
+	{
+		ClassificationOutcome outcome = cache.getOutcome(this);
+		outcomeShape = outcome.getShape();
+		outcomeBound = outcome.getRawBound();
+		outcomePositiveByNonMinority = outcome.isPositiveByNonMinority();
+		call = outcome.callFor(superiorityThresh);
+		superiorityBound = outcome.boundFor(superiorityThresh);
+		classified = true;
+		if (trace != null  &&  trace.isEmpty())
+		{
+			// Outcome came from the cache, so no steps were recorded.
+			trace.rule(ClassificationTrace.Rule.CACHED);
+			trace.outcome(outcomeShape, outcomeBound);
+		}
+		if (trace != null)
+			trace.call(call, superiorityBound);
+		return this;
+	}
+	
+	
+	// Call computeOutcome() first.
+	public ClassificationOutcome.Shape getOutcomeShape()
+	{
+		return outcomeShape;
+	}
+	
+	
+	// Allocates. Call computeOutcome() first.
+	public ClassificationOutcome getOutcome()
+	{
+		return new ClassificationOutcome(outcomeShape, outcomeBound, outcomePositiveByNonMinority);
+	}
+	
+	
+	// -Infinity if never accepted. Call computeOutcome() first.
+	public double getMaxAcceptingThreshold()
+	{
+		return ClassificationOutcome.getMaxAcceptingThreshold(outcomeShape, outcomeBound, outcomePositiveByNonMinority);
+	}
+	
+	
+	//
+	// Does all the threshold-independent work of classification. Same rules, in the same order, as 
+	// ConservedDomainReport.classifyForSuperiorityThreshold(); see the comments there. Where that method compares
+	// with the threshold, this records an outcome shape instead.
+	//
+	public CompactConservedDomainReport computeOutcome()
+	{
+		outcomePositiveByNonMinority = false;
+		if (nHits == 0)
+		{
+			if (trace != null)
+				trace.rule(ClassificationTrace.Rule.EMPTY_REPORT);
+			return setOutcome(ClassificationOutcome.Shape.REJECT, Double.NaN);
+		}
+		
+		buildEchelons();
+		
+		// Remove UNINFORMATIVE (and UNKNOWN, which buildEchelons() has already converted) echelons from top of list.
+		int best = 0;
+		while (nEchelons - best > 1  &&  echelonTypes[best] == EchelonType.UNINFORMATIVE)
+		{
+			if (trace != null)
+				trace.dropped(echelonEs[best], echelonTypes[best]);
+			best++;
+		}
+		int nSurvivors = nEchelons - best;
+		double eOfBestEchelon = echelonEs[best];
+		EchelonType bestEchelonType = echelonTypes[best];
+		
+		// Special case: 1 echelon.
+		if (nSurvivors == 1)
+		{
+			double supeBound = (eOfBestEchelon == 0)  ?  ConservedDomainReport.MAX_SUPERIORITY  :  -Math.log10(eOfBestEchelon);
+			if (trace != null)
+			{
+				trace.rule(ClassificationTrace.Rule.SINGLE_ECHELON);
+				trace.superiority(eOfBestEchelon, Double.NaN, supeBound);
+			}
+			switch (bestEchelonType)
+			{
+				case POSITIVE:
+					return setOutcome(ClassificationOutcome.Shape.ACCEPT_AT_THRESHOLD, supeBound);
+				case NEGATIVE:
+					return setOutcome(ClassificationOutcome.Shape.SINGLE_NEGATIVE, supeBound);
+				case UNINFORMATIVE:
+					outcomePositiveByNonMinority = 
+						EchelonType.positiveByNonMinority(echelonNPos[best], echelonNNeg[best]) == EchelonType.POSITIVE;
+					return setOutcome(ClassificationOutcome.Shape.SINGLE_UNINFORMATIVE, supeBound);
+				default:
+					assert false : "Unexpected echelon type " + bestEchelonType + " for query = " + query;
+					return setOutcome(ClassificationOutcome.Shape.REJECT, Double.NaN);
+			}
+		}
+		
+		// Special case: multiple echelons, 1 echelon type.
+		boolean homogeneous = true;
+		for (int i=best+1; i<nEchelons  &&  homogeneous; i++)
+			homogeneous = echelonTypes[i] == bestEchelonType;
+		if (homogeneous)
+		{
+			double supeBound = ConservedDomainReport.toSuperiority(eOfBestEchelon, echelonEs[nEchelons-1]);
+			if (trace != null)
+			{
+				trace.rule(ClassificationTrace.Rule.SINGLE_ECHELON_TYPE);
+				trace.superiority(eOfBestEchelon, echelonEs[nEchelons-1], supeBound);
+			}
+			if (bestEchelonType == EchelonType.POSITIVE)
+				return setOutcome(ClassificationOutcome.Shape.ACCEPT_AT_THRESHOLD, supeBound);
+			assert bestEchelonType == EchelonType.NEGATIVE  ||  bestEchelonType == EchelonType.UNINFORMATIVE;
+			return setOutcome(ClassificationOutcome.Shape.REJECT, -supeBound);
+		}
+		
+		// General case: multiple echelons, multiple types. Top echelon is POSITIVE or NEGATIVE.
+		assert bestEchelonType == EchelonType.POSITIVE  ||  bestEchelonType == EchelonType.NEGATIVE   :  
+			"Unexpected echelon type " + bestEchelonType + " for query = " + query;
+		if (bestEchelonType == EchelonType.NEGATIVE)
+		{
+			double supeBound = ConservedDomainReport.toSuperiority(eOfBestEchelon, echelonEs[best+1]);
+			if (trace != null)
+			{
+				trace.rule(ClassificationTrace.Rule.TOP_ECHELON_NEGATIVE);
+				trace.superiority(eOfBestEchelon, echelonEs[best+1], supeBound);
+			}
+			return setOutcome(ClassificationOutcome.Shape.REJECT, -supeBound);
+		}
+		
+		// Top echelon is positive. Superiority is relative to the best negative echelon, if any. UNINFORMATIVE
+		// echelons are ignored.
+		int bestNegative = -1;
+		for (int i=best+1; i<nEchelons; i++)
+		{
+			if (echelonTypes[i] == EchelonType.NEGATIVE)
+			{
+				bestNegative = i;
+				break;
+			}
+		}
+		double supeBound = (bestNegative >= 0)  ?  
+			ConservedDomainReport.toSuperiority(eOfBestEchelon, echelonEs[bestNegative])  :
+			(eOfBestEchelon != 0)  ?  -Math.log10(eOfBestEchelon)  :  ConservedDomainReport.MAX_SUPERIORITY;
+		assert supeBound > 0;
+		if (trace != null)
+		{
+			trace.rule(ClassificationTrace.Rule.TOP_ECHELON_POSITIVE);
+			trace.superiority(eOfBestEchelon, (bestNegative >= 0)  ?  echelonEs[bestNegative]  :  Double.NaN, supeBound);
+		}
+		return setOutcome(ClassificationOutcome.Shape.ACCEPT_AT_THRESHOLD, supeBound);
+	}
+	
+	
+	private CompactConservedDomainReport setOutcome(ClassificationOutcome.Shape shape, double bound)
+	{
+		outcomeShape = shape;
+		outcomeBound = bound;
+		if (trace != null)
+			trace.outcome(shape, bound);
+		return this;
+	}
+	
+	
+	// Collects runs of equal e-values into echelons, and types them. UNKNOWN is converted to NEGATIVE.
+	private void buildEchelons()
+	{
+		nEchelons = 0;
+		int i = 0;
+		while (i < nHits)
+		{
+			int start = i;
+			double e = es[i];
+			int nPos = 0;
+			int nNeg = 0;
+			int nUninformative = 0;
+			for (; i<nHits  &&  Double.compare(es[i], e) == 0; i++)
+			{
+				switch (coiness[i])
+				{
+					case POSITIVE:			nPos++;				break;
+					case NEGATIVE:			nNeg++;				break;
+					default:				nUninformative++;	break;
+				}
+			}
+			EchelonType type = EchelonType.forCounts(nPos, nNeg, nUninformative);
+			if (trace != null)
+				trace.echelon(e, pssmIds, subjects, start, i, type);
+			// Special case: if single echelon has strong e-value, classify by majority rule.
+			if (nEchelons == 0  &&  type == EchelonType.UNINFORMATIVE  &&  e < 1.0E-50)
+			{
+				type = EchelonType.positiveByNonMinority(nPos, nNeg);
+				if (trace != null  &&  type != EchelonType.UNINFORMATIVE)
+					trace.retyped(e, EchelonType.UNINFORMATIVE, type, "strong top echelon, non-minority rule");
+			}
+			if (type == EchelonType.UNKNOWN)
+			{
+				type = EchelonType.NEGATIVE;
+				if (trace != null)
+					trace.retyped(e, EchelonType.UNKNOWN, type, "no known cds");
+			}
+			echelonEs[nEchelons] = e;
+			echelonTypes[nEchelons] = type;
+			echelonNPos[nEchelons] = nPos;
+			echelonNNeg[nEchelons] = nNeg;
+			nEchelons++;
+		}
+	}
+	
+	
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nAccession = ").append(query).append('\n');
+		for (int i=0; i<nHits; i++)
+			sb.append(pssmIds[i]).append(" (").append(coiness[i]).append(")  evalue = ").append(es[i]).append('\n');
+		if (!Double.isNaN(superiorityBound))
+			sb.append("SUPERIORITY = ").append(superiorityBound);
+		return sb.toString();
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	// Checks that both report types give the same call and bound for every query in an rpsblast output file.
+	public static void main(String[] args) throws IOException
+	{
+		sop("START");
+		File f = CompressedInputs.resolve(new File(args.length > 0  ?  args[0]  :  "data/rpsblast_out.csv"));
+		double thresh = (args.length > 1)  ?  Double.parseDouble(args[1])  :  0.9;
+		int nReports = 0;
+		int nMismatches = 0;
+		try
+		(
+			ConserverDomainReportReader mapReader = new ConserverDomainReportReader(f);
+			ConserverDomainReportReader compactReader = new ConserverDomainReportReader(f);
+		)
+		{
+			CompactConservedDomainReport compact = new CompactConservedDomainReport();
+			ConservedDomainReport report;
+			while ((report = mapReader.readReport()) != null)
+			{
+				compactReader.readReport(compact);
+				report.classifyForSuperiorityThreshold(thresh);
+				compact.classifyForSuperiorityThreshold(thresh);
+				nReports++;
+				Double bound = report.getSuperiorityBound();
+				double compactBound = compact.getSuperiorityBound();
+				boolean sameBound = (bound == null)  ?  Double.isNaN(compactBound)  :  bound == compactBound;
+				if (report.isCOI() != compact.isCOI()  ||  !sameBound)
+				{
+					nMismatches++;
+					sop("Mismatch for " + report.getQuery() + ": " + report + "\nvs" + compact);
+				}
+			}
+		}
+		sop(nReports + " reports, " + nMismatches + " mismatches");
+		sop("DONE");
+	}
+}
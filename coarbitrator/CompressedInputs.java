@@ -0,0 +1,102 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    CompressedInputs.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+
+//
+// Opens input files that might be gzipped or block-gzipped (BGZF), detected by content rather than by
+// name. Uncompressed files are returned as ordinary buffered streams.
+//
+
+
+public class CompressedInputs 
+{
+	private final static int			BUF_SIZE		= 1 << 16;
+	
+	
+	private CompressedInputs()		{ }
+	
+	
+	public enum Compression
+	{
+		NONE, GZIP, BGZF;
+	}
+	
+	
+	public static Compression getCompression(File f) throws IOException
+	{
+		byte[] header = new byte[BgzfInputStream.MAX_HEADER_LEN];
+		int n = 0;
+		try (FileInputStream fis = new FileInputStream(f))
+		{
+			int nRead;
+			while (n < header.length  &&  (nRead = fis.read(header, n, header.length - n)) > 0)
+				n += nRead;
+		}
+		if (BgzfInputStream.isBgzfHeader(header, n))
+			return Compression.BGZF;
+		else if (n >= 2  &&  (header[0] & 0xff) == 0x1f  &&  (header[1] & 0xff) == 0x8b)
+			return Compression.GZIP;
+		else
+			return Compression.NONE;
+	}
+	
+	
+	public static boolean isCompressed(File f) throws IOException
+	{
+		return getCompression(f) != Compression.NONE;
+	}
+	
+	
+	public static InputStream openInputStream(File f) throws IOException
+	{
+		Compression compression = getCompression(f);
+		InputStream fis = new FileInputStream(f);
+		switch (compression)
+		{
+			case BGZF:
+				return new BgzfInputStream(new BufferedInputStream(fis, BUF_SIZE));
+			case GZIP:
+				// GZIPInputStream reads concatenated members, e.g. from "cat a.gz b.gz".
+				return new GZIPInputStream(fis, BUF_SIZE);
+			default:
+				return new BufferedInputStream(fis, BUF_SIZE);
+		}
+	}
+	
+	
+	public static BufferedReader openReader(File f) throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(openInputStream(f)), BUF_SIZE);
+	}
+	
+	
+	// Returns f if it exists, otherwise f with ".gz" appended if that exists, otherwise f.
+	public static File resolve(File f)
+	{
+		if (f.exists())
+			return f;
+		File gz = new File(f.getPath() + ".gz");
+		return gz.exists()  ?  gz  :  f;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ConcurrentBinCounter.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+
+//
+// Bin counter that many threads can bump at once, e.g. for tallies shared by the tasks of a parallel stream.
+// Each bin is a LongAdder, which stripes its count over cells so that contended increments don't retry on
+// one hot value; a bin is created once, after which bumping it takes no lock and allocates nothing.
+//
+// snapshot() copies the counts into a TreeBinCounter for reporting. A snapshot taken after the bumping 
+// threads are done is exact. One taken while they're running includes every bump that completed before it 
+// started, but bumps that race with it may or may not be included, per bin.
+//
+
+
+public class ConcurrentBinCounter<K>
+{
+	private final ConcurrentHashMap<K, LongAdder>		counts;
+	
+	
+	public ConcurrentBinCounter()
+	{
+		counts = new ConcurrentHashMap<>();
+	}
+	
+	
+	public void bumpCountForBin(K bin)
+	{
+		adderFor(bin).increment();
+	}
+	
+	
+	public void bumpCountForBin(K bin, long delta)
+	{
+		adderFor(bin).add(delta);
+	}
+	
+	
+	// Lookup first: computeIfAbsent() can lock the bin even when it's present.
+	private LongAdder adderFor(K bin)
+	{
+		LongAdder adder = counts.get(bin);
+		return (adder != null)  ?  adder  :  counts.computeIfAbsent(bin, k -> new LongAdder());
+	}
+	
+	
+	// -1 if bin doesn't exist.
+	public long getCountForBin(K bin)
+	{
+		LongAdder adder = counts.get(bin);
+		return (adder != null)  ?  adder.sum()  :  -1;
+	}
+	
+	
+	public long getCountForBinZeroDefault(K bin)
+	{
+		LongAdder adder = counts.get(bin);
+		return (adder != null)  ?  adder.sum()  :  0;
+	}
+	
+	
+	public int size()
+	{
+		return counts.size();
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return counts.isEmpty();
+	}
+	
+	
+	public Set<K> keySet()
+	{
+		return Collections.unmodifiableSet(counts.keySet());
+	}
+	
+	
+	public long getSumOfAllCounts()
+	{
+		long sum = 0;
+		for (LongAdder adder: counts.values())
+			sum += adder.sum();
+		return sum;
+	}
+	
+	
+	// Keys must be Comparable.
+	public TreeBinCounter<K> snapshot()
+	{
+		return snapshotInto(new TreeBinCounter<K>());
+	}
+	
+	
+	public TreeBinCounter<K> snapshot(Comparator<? super K> comparator)
+	{
+		return snapshotInto(new TreeBinCounter<K>(comparator));
+	}
+	
+	
+	private TreeBinCounter<K> snapshotInto(TreeBinCounter<K> ret)
+	{
+		for (Map.Entry<K, LongAdder> entry: counts.entrySet())
+			ret.put(entry.getKey(), new long[] { entry.getValue().sum() });
+		return ret;
+	}
+	
+	
+	// Snapshot, then zero every bin. Bumps that race with this are counted in either the snapshot or the
+	// counter, never both and never neither.
+	public TreeBinCounter<K> snapshotAndReset()
+	{
+		TreeBinCounter<K> ret = new TreeBinCounter<K>();
+		for (Map.Entry<K, LongAdder> entry: counts.entrySet())
+			ret.put(entry.getKey(), new long[] { entry.getValue().sumThenReset() });
+		return ret;
+	}
+	
+	
+	public String toString()
+	{
+		return snapshot().toString();
+	}
+}
@@ -33,82 +33,44 @@ import java.io.*;
 
 public class ConservedDomainReport extends LinkedHashMap<String, Double>
 {
-	private final static double					MAX_SUPERIORITY		= 180;
-	private final static File					DFLT_CD_FILE = new File("data/cds.csv");
-	private final static File					BACKUP_CD_FILE = new File("cds.csv");
+	final static double							MAX_SUPERIORITY		= 180;
 	
 	private String								query;
 	private Map<Double, EchelonType> 			expectToEchelonType;
 	private Map<Double, Echelon> 				expectToEchelon;
 	private Double								superiorityBound;
 	private Boolean								call;
+	private ClassificationTrace					trace;		// null unless tracing
+	private long								referenceVersion;
 
 	
 	// Keys are cd names e.g. cd00387 or codes e.g. 238833. Codes are irritating values returned
 	// by terse-format local rpsblasts. They correspond 1-1 to cds, and hopefully I've manually
-	// identified the ones that matter.
-	private static Map<String, ConservedDomainCOIness>
-												ID_TO_COINESS;
+	// identified the ones that matter. Codes are looked up in a dense array.
+	//
+	// Tables are loaded from cds.csv and cdd.versions (via a compiled snapshot) on first use, and can be
+	// reloaded while running; see ReferenceDataHolder. Each version is immutable, so reports can be 
+	// classified concurrently. Each report's echelon state belongs to that report alone.
+	private final static ReferenceDataHolder		REFERENCE_DATA	= 
+		new ReferenceDataHolder(PssmCOInessTable.getDefaultFile(), CdPssmidToAccAndShortName.getDefaultFile());
 	
-	private static CdPssmidToAccAndShortName 	PSSM_MAP;
-
 	
-	static 
+	static ReferenceDataHolder getReferenceDataHolder()
 	{
-		try
-		{
-			// Accession -> ConservedDomainCOIness
-			ID_TO_COINESS = new TreeMap<>();
-			File ifile = DFLT_CD_FILE.exists()  ?  DFLT_CD_FILE  :  BACKUP_CD_FILE;
-			try
-			(
-				FileReader fr = new FileReader(ifile);
-				BufferedReader br = new BufferedReader(fr);
-			)
-			{
-				String line;
-				while ((line = br.readLine()) != null)
-				{
-					if (line.trim().isEmpty())
-						continue;
-					String[] pieces = line.split(",");
-					assert pieces.length == 2  :  line;
-					ID_TO_COINESS.put(pieces[0].trim(), ConservedDomainCOIness.valueOf(pieces[1].trim()));
-				}
-			}
-			
-			// Pssm id -> ConservedDomainCOIness
-			PSSM_MAP = new CdPssmidToAccAndShortName();
-			for (String pssm: PSSM_MAP.keySet())
-			{
-				String acc = PSSM_MAP.getAccession(pssm);
-				if (ID_TO_COINESS.containsKey(acc))
-					ID_TO_COINESS.put(pssm, ID_TO_COINESS.get(acc));
-			}
-		}
-		catch (IOException x)
-		{
-			sop("Couldn't initialize conserved domain tables: " + x.getMessage());
-			System.exit(1);
-		}
+		return REFERENCE_DATA;
 	}
 	
 	
-	private static ConservedDomainCOIness getCOIness(String cd)
+	// Current version. Code that looks up more than 1 cd should get a ReferenceData once and use it throughout.
+	static ConservedDomainCOIness getCOIness(int pssmId)
 	{
-		if (cd.toLowerCase().startsWith("cl"))
-			return ConservedDomainCOIness.UNINFORMATIVE;
-		
-		else if (ID_TO_COINESS.containsKey(cd))
-			return ID_TO_COINESS.get(cd);
-		
-		// 12/4/16 - 209 conserved domains have been manually classified, including all top hits. Of the
-		// remainder, 698 appear as cd2, 515 as cd3, 1439 as cd4, and 2206 as cd5. All of the last 40 cds
-		// that I checked were NEGATIVE and I'm convinced I've found all the POSITIVEs (i.e. COIs). So
-		// any unknown cd will be henceforth classified as NEGATIVE, and every cd will get a classification.
-		// 7/21/17 - More confirmation of above.
-		else 
-			return ConservedDomainCOIness.NEGATIVE;
+		return REFERENCE_DATA.get().getCOIness(pssmId);
+	}
+	
+	
+	static ConservedDomainCOIness getCOIness(String cd)
+	{
+		return REFERENCE_DATA.get().getCOIness(cd);
 	}
 	
 	
@@ -116,10 +78,16 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 	
 	
 	ConservedDomainReport(String query)
+	{
+		this.query = normalizeQuery(query);
+	}
+	
+	
+	static String normalizeQuery(String query)
 	{
 		if (query.startsWith("MIDORI"))				// MIDORI_n_U36794_p_U36794  oops, nuc field copied into prot field
 			query = query.split("_")[2];
-		this.query = query;
+		return query;
 	}
 	
 	
@@ -150,20 +118,45 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 	}
 	
 	
+	// Version of the reference tables used by the last classification, or 0 if not classified.
+	public long getReferenceVersion()
+	{
+		return referenceVersion;
+	}
+	
+	
+	// Classification records its steps into the trace, if not null. Set before classifying.
+	public void setTrace(ClassificationTrace trace)
+	{
+		this.trace = trace;
+		if (trace != null)
+			trace.clear(query);
+	}
+	
+	
+	public ClassificationTrace getTrace()
+	{
+		return trace;
+	}
+	
+	
 	public String toString()
 	{
-		String s = "\nAccession = " + query + "\n";
+		ReferenceData ref = REFERENCE_DATA.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nAccession = ").append(query).append('\n');
 		for (String pssm: keySet())
 		{
-			s += pssm;
-			if (PSSM_MAP.containsKey(pssm))
-				s += "=" + PSSM_MAP.getAccession(pssm);
-			s += " (" + getCOIness(pssm) + ") ";
-			s += " evalue = " + get(pssm) + "\n";
+			sb.append(pssm);
+			String acc = ref.getAccession(pssm);
+			if (acc != null)
+				sb.append('=').append(acc);
+			sb.append(" (").append(ref.getCOIness(pssm)).append(") ");
+			sb.append(" evalue = ").append(get(pssm)).append('\n');
 		}
 		if (superiorityBound != null)
-			s += "SUPERIORITY = " + superiorityBound;
-		return s;
+			sb.append("SUPERIORITY = ").append(superiorityBound);
+		return sb.toString();
 	}
 	
 	
@@ -171,67 +164,71 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 	{
 		public String toString()
 		{
-			String s = "Echelon:";
+			ReferenceData ref = REFERENCE_DATA.get();
+			StringBuilder sb = new StringBuilder("Echelon:");
 			for (String pssm: this)
-				s += " " + pssm + "=" + PSSM_MAP.getAccession(pssm);
-			return s;
+				sb.append(' ').append(pssm).append('=').append(ref.getAccession(pssm));
+			return sb.toString();
 		}
 	}
 	
 	
-	private enum EchelonType
+	enum EchelonType
 	{
 		POSITIVE, NEGATIVE, UNKNOWN, UNINFORMATIVE;
 		
 		
 		// Echelon is a collection of cds.
-		static EchelonType forEchelon(Collection<String> echelon)
+		static EchelonType forEchelon(Collection<String> echelon, ReferenceData ref)
 		{
 			// Count by COIness.
-			HashBinCounter<ConservedDomainCOIness> ctr = new HashBinCounter<>();
+			EnumBinCounter<ConservedDomainCOIness> ctr = new EnumBinCounter<>(ConservedDomainCOIness.class);
 			for (String cd: echelon)
 			{
-				ConservedDomainCOIness ness = getCOIness(cd);
+				ConservedDomainCOIness ness = ref.getCOIness(cd);
 				assert ness != null;
 				ctr.bumpCountForBin(ness);	
 			}
-			
-			// No known cds.
-			if (ctr.isEmpty())
-				return UNKNOWN;
-			
-			// Homogeneous.
-			else if (ctr.size() == 1)
-			{
-				ConservedDomainCOIness ness = ctr.keySet().iterator().next();
-				return EchelonType.valueOf(ness.toString());
-			}
-		
-			// Mixed.
-			boolean havePositive = ctr.getCountForBin(ConservedDomainCOIness.POSITIVE) > 0;
-			boolean haveNegative = ctr.getCountForBin(ConservedDomainCOIness.NEGATIVE) > 0;
-			if (havePositive  &&  !haveNegative)
-				return POSITIVE;
-			else if (haveNegative  &&  !havePositive)
-				return NEGATIVE;
-			else
-				return UNINFORMATIVE;		
+			return forCounts(ctr.getCountForBinZeroDefault(ConservedDomainCOIness.POSITIVE), 
+							 ctr.getCountForBinZeroDefault(ConservedDomainCOIness.NEGATIVE), 
+							 ctr.getCountForBinZeroDefault(ConservedDomainCOIness.UNINFORMATIVE));
 		} 
 		
 		
-		static EchelonType positiveByNonMinority(Collection<String> echelon)
+		static EchelonType positiveByNonMinority(Collection<String> echelon, ReferenceData ref)
 		{
 			int nPosCDs = 0;
 			int nNegCDs = 0;
 			for (String cd: echelon)
 			{
-				ConservedDomainCOIness ness = getCOIness(cd);
+				ConservedDomainCOIness ness = ref.getCOIness(cd);
 				if (ness == ConservedDomainCOIness.POSITIVE)
 					nPosCDs++;
 				else if (ness == ConservedDomainCOIness.NEGATIVE)
 					nNegCDs++;
 			}
 			
+			return positiveByNonMinority(nPosCDs, nNegCDs);
+		}
+		
+		
+		//
+		// No known cds: UNKNOWN. Homogeneous: the cds' COIness. Mixed: POSITIVE if some are POSITIVE and none 
+		// are NEGATIVE, NEGATIVE if the reverse, else UNINFORMATIVE.
+		//
+		static EchelonType forCounts(int nPosCDs, int nNegCDs, int nUninformativeCDs)
+		{
+			if (nPosCDs > 0)
+				return (nNegCDs == 0)  ?  POSITIVE  :  UNINFORMATIVE;
+			else if (nNegCDs > 0)
+				return NEGATIVE;
+			else
+				return (nUninformativeCDs > 0)  ?  UNINFORMATIVE  :  UNKNOWN;
+		}
+		
+		
+		static EchelonType positiveByNonMinority(int nPosCDs, int nNegCDs)
+		{
 			return (nPosCDs >= 1  &&  nNegCDs <= 1)  ?  POSITIVE  :  UNINFORMATIVE;
 		}
 	} // EchelonType
@@ -246,10 +243,25 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 	// Returns this report to support classifying in midstream.
 	//
 	public ConservedDomainReport classifyForSuperiorityThreshold(double superiorityThresh)
+	{
+		ReferenceData ref = REFERENCE_DATA.get();
+		referenceVersion = ref.getVersion();
+		if (trace != null)
+			trace.referenceData(ref);
+		classify(superiorityThresh, ref);
+		if (trace != null)
+			trace.call(call, (superiorityBound == null)  ?  Double.NaN  :  superiorityBound);
+		return this;
+	}
+	
+	
+	private ConservedDomainReport classify(double superiorityThresh, ReferenceData ref)
 	{
 		if (isEmpty())
 		{
 			call = false;
+			if (trace != null)
+				trace.rule(ClassificationTrace.Rule.EMPTY_REPORT);
 			return this;
 		}
 				
@@ -273,13 +285,17 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 		for (Double e: expectToEchelon.keySet())
 		{
 			Echelon echelon = expectToEchelon.get(e);
-			EchelonType type = EchelonType.forEchelon(echelon);
+			EchelonType type = EchelonType.forEchelon(echelon, ref);
 			expectToEchelonType.put(e, type);
+			if (trace != null)
+				trace.echelon(e, echelon, type);
 			// Special case: if single echelon has strong e-value, classify by majority rule.
 			if (expectToEchelonType.size() == 1  &&  type == EchelonType.UNINFORMATIVE  &&  e < 1.0E-50)
 			{
-				type = EchelonType.positiveByNonMinority(echelon);	// might change to POSITIVE
+				type = EchelonType.positiveByNonMinority(echelon, ref);	// might change to POSITIVE
 				expectToEchelonType.put(e, type);
+				if (trace != null  &&  type != EchelonType.UNINFORMATIVE)
+					trace.retyped(e, EchelonType.UNINFORMATIVE, type, "strong top echelon, non-minority rule");
 			}
 		}
 		
@@ -293,6 +309,8 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 		esOfUnknown
 			.stream()
 			.forEach(e -> expectToEchelonType.put(e, EchelonType.NEGATIVE));
+		if (trace != null)
+			esOfUnknown.stream().sorted().forEach(e -> trace.retyped(e, EchelonType.UNKNOWN, EchelonType.NEGATIVE, "no known cds"));
 		
 		// Remove UNINFORMATIVE and UNKNOWN echelons from top of list.
 		while (expectToEchelonType.size() > 1)
@@ -303,6 +321,8 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 			{
 				expectToEchelonType.remove(bestSurvivingE);
 				expectToEchelon.remove(bestSurvivingE);
+				if (trace != null)
+					trace.dropped(bestSurvivingE, typeOfBestSurvivor);
 			}
 			else
 				break;
@@ -313,6 +333,8 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 		if (expectToEchelonType.isEmpty())
 		{
 			call = false;
+			if (trace != null)
+				trace.rule(ClassificationTrace.Rule.NO_SURVIVING_ECHELONS);
 			return this;
 		}
 
@@ -322,6 +344,11 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 		if (expectToEchelonType.size() == 1)
 		{
 			superiorityBound = (eOfBestEchelon == 0)  ?  MAX_SUPERIORITY  :  -Math.log10(eOfBestEchelon);
+			if (trace != null)
+			{
+				trace.rule(ClassificationTrace.Rule.SINGLE_ECHELON);
+				trace.superiority(eOfBestEchelon, Double.NaN, superiorityBound);
+			}
 			if (superiorityBound < superiorityThresh)
 			{
 				// Insufficient superiority.
@@ -341,7 +368,7 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 				case UNINFORMATIVE:
 					// Accept if mostly positive and very strong e-value.
 					call = superiorityBound > 25  &&  
-						   EchelonType.positiveByNonMinority(bestEchelon) == EchelonType.POSITIVE;
+						   EchelonType.positiveByNonMinority(bestEchelon, ref) == EchelonType.POSITIVE;
 					if (call == false)
 						superiorityBound = -MAX_SUPERIORITY;
 					return this;
@@ -357,16 +384,20 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 		}
 		
 		// Special case: multiple echelons, 1 echelon type.
-		TreeBinCounter<EchelonType> echelonTypeCtr = 
-				expectToEchelonType.values()
-				.stream()
-				.collect(LocalCollectors.toTreeBinCounter());
+		EnumBinCounter<EchelonType> echelonTypeCtr = new EnumBinCounter<>(EchelonType.class);
+		for (EchelonType type: expectToEchelonType.values())
+			echelonTypeCtr.bumpCountForBin(type);
 		if (echelonTypeCtr.size() == 1)
 		{
 			List<Double> expects = new ArrayList<>(expectToEchelonType.keySet());
 			Double worstExpect = expects.get(expects.size()-1);
 			double supeBound = toSuperiority(eOfBestEchelon, worstExpect);
 			EchelonType bestEchelonType = expectToEchelonType.get(eOfBestEchelon);
+			if (trace != null)
+			{
+				trace.rule(ClassificationTrace.Rule.SINGLE_ECHELON_TYPE);
+				trace.superiority(eOfBestEchelon, worstExpect, supeBound);
+			}
 			switch (bestEchelonType)
 			{
 				case POSITIVE:
@@ -400,11 +431,18 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 			// Top echelon is negative.
 			superiorityBound = -toSuperiority(eOfBestEchelon, expectsBelowBest.get(0));
 			call = false;
+			if (trace != null)
+			{
+				trace.rule(ClassificationTrace.Rule.TOP_ECHELON_NEGATIVE);
+				trace.superiority(eOfBestEchelon, expectsBelowBest.get(0), -superiorityBound);
+			}
 		}
 		else
 		{
 			// Top echelon is positive. Remove all echelons except POSITIVEs and NEGATIVEs, compute superiority, and classify.
 			assert bestEchelonType == EchelonType.POSITIVE;
+			if (trace != null)
+				trace.rule(ClassificationTrace.Rule.TOP_ECHELON_POSITIVE);
 			Set<Double> expectsToRemove =
 				expectToEchelonType.keySet()
 				.stream()
@@ -423,6 +461,8 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 			{
 				// No negatives. Derive superiority from e-value of top echelon (which is positive).
 				superiorityBound = (eOfBestEchelon != 0)  ?  -Math.log10(eOfBestEchelon)  :  MAX_SUPERIORITY;
+				if (trace != null)
+					trace.superiority(eOfBestEchelon, Double.NaN, superiorityBound);
 			}
 			else
 			{
@@ -438,6 +478,8 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 				}
 				assert eOfBestNegativeEchelon != null;
 				superiorityBound = toSuperiority(eOfBestEchelon, eOfBestNegativeEchelon);
+				if (trace != null)
+					trace.superiority(eOfBestEchelon, eOfBestNegativeEchelon, superiorityBound);
 			}
 			assert superiorityBound > 0;
 			call = superiorityBound >= superiorityThresh;
@@ -447,7 +489,7 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 	}
 	
 	
-	private static double toSuperiority(double betterE, double worseE)
+	static double toSuperiority(double betterE, double worseE)
 	{
 		assert betterE < worseE  :  "Expected " + betterE + " to be < " + worseE;
 		assert worseE >= 0;
@@ -470,13 +512,10 @@ public class ConservedDomainReport extends LinkedHashMap<String, Double>
 	public static void main(String[] args) throws Exception
 	{
 		sop("START");
-		File f = new File("data/rpsblast_out.csv");
+		File f = CompressedInputs.resolve(new File("data/rpsblast_out.csv"));
 		try
 		(
-				FileReader fr = new FileReader(f);
-				BufferedReader br = new BufferedReader(fr);
-				ReversibleBufferedReader rbr = new ReversibleBufferedReader(br);
-				ConserverDomainReportReader cdr = new ConserverDomainReportReader(rbr);
+				ConserverDomainReportReader cdr = new ConserverDomainReportReader(f);
 		)
 		{
 			ConservedDomainReport report;
@@ -20,9 +20,7 @@
 package coarbitrator;
 
 import java.io.*;
-import java.sql.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 //
@@ -48,20 +46,65 @@ import java.util.stream.Collectors;
 4259,gnl|CDD|223913,6e-38
 */
 // The 6-digit codes correspond to conserved domains.
+//
+// All hits for a query must be contiguous. Use forUnsortedFile() when they might not be.
+//
+// Input comes from a LineSource. Files are read with a ByteLineSource, so lines are scanned in place in a byte
+// buffer and only the subjects of a block are copied out. Those lines' chars are bytes, so the query and 
+// subject names handed out are decoded as UTF-8.
+//
 
 
 public class ConserverDomainReportReader implements AutoCloseable
 {
 	private final static int			MAX_HITS_PER_QUERY	= 10;
 	
-	private ReversibleBufferedReader	rbr;
+	private LineSource					lines;
+	private boolean						utf8Bytes;		// lines are a ByteLineSource's
 	private int							format;
 	private boolean 					open;
+	private boolean						ownsReader;
+	
+	// Current block, reused from query to query. Hits are stored in input order; order[] ranks them by e-value.
+	// Subjects are copied into subjChars, since the lines they came from don't outlive the next readLine().
+	// blockQueryChars is the query as read, for matching later lines; blockQuery is decoded.
+	private String						blockQuery;
+	private String						blockQueryChars;
+	private int							nHits;
+	private char[]						subjChars	= new char[16 * MAX_HITS_PER_QUERY];
+	private int							nSubjChars;
+	private int							subjCharBits;	// OR of subjChars; >= 0x80 if any aren't ASCII
+	private int[]						subjStarts	= new int[MAX_HITS_PER_QUERY];
+	private int[]						subjEnds	= new int[MAX_HITS_PER_QUERY];
+	private double[]					es			= new double[MAX_HITS_PER_QUERY];
+	private int[]						pssmIds		= new int[MAX_HITS_PER_QUERY];
+	private int[]						order		= new int[MAX_HITS_PER_QUERY];
+	private int[]						mergeTmp	= new int[MAX_HITS_PER_QUERY];
 	
 
-	public ConserverDomainReportReader(ReversibleBufferedReader rbr)
+	public ConserverDomainReportReader(LineSource lines)
+	{
+		this.lines = lines;
+		utf8Bytes = lines instanceof ByteLineSource;
+	}
+	
+	
+	// Reads plain, gzipped, or BGZF files. Closing this reader closes the file.
+	public ConserverDomainReportReader(File f) throws IOException
 	{
-		this.rbr = rbr;
+		this(new ByteLineSource(f));
+		ownsReader = true;
+	}
+	
+	
+	// For input whose hits aren't grouped by query, e.g. concatenated outputs from several rpsblast shards.
+	// Hits are sorted by (query, e-value) in bounded memory and the sorted lines are streamed.
+	public static ConserverDomainReportReader forUnsortedFile(File f) throws IOException
+	{
+		BufferedReader sorted = new ExternalHitSorter().openSorted(f);
+		ConserverDomainReportReader ret = new ConserverDomainReportReader(new ReversibleBufferedReader(sorted));
+		ret.ownsReader = true;
+		return ret;
 	}
 	
 	
@@ -70,43 +113,368 @@ public class ConserverDomainReportReader implements AutoCloseable
 	//
 	public ConservedDomainReport readReport() throws IOException
 	{
-		String line = rbr.readLine();
-		if (line == null)
+		if (!readBlock())
 			return null;
-
-		// Determine query.
-		String[] pieces = line.split(",");
-		String query = pieces[0];
-		rbr.push(line);
+		ConservedDomainReport ret = new ConservedDomainReport(blockQuery);
+		for (int rank=0; rank<nHits; rank++)
+			ret.put(getBlockSubject(rank), getBlockE(rank));
+		return ret;
+	}
+	
+	
+	//
+	// Fills the caller's report with the next query's hits, avoiding per-report allocation. Returns false at
+	// end of input. COIness is looked up here, by numeric pssm id when possible, all from the same version of
+	// the reference tables.
+	//
+	public boolean readReport(CompactConservedDomainReport into) throws IOException
+	{
+		if (!readBlock())
+			return false;
+		ReferenceData ref = ConservedDomainReport.getReferenceDataHolder().get();
+		into.reset(blockQuery, ref);
+		for (int rank=0; rank<nHits; rank++)
+		{
+			int pssmId = getBlockPssmId(rank);
+			String subj = null;
+			ConservedDomainCOIness ness;
+			if (pssmId >= 0)
+				ness = ref.getCOIness(pssmId);
+			else
+			{
+				subj = getBlockSubject(rank);
+				if (subj.startsWith("CDD:"))		// as in ConservedDomainReport.put()
+					subj = subj.substring(4);
+				ness = ref.getCOIness(subj);
+			}
+			into.addHit(pssmId, subj, ness, getBlockE(rank));
+		}
+		return true;
+	}
+	
+	
+	//
+	// Reads the next query's hits into the block buffers, sorted by increasing e-value (ties keep input 
+	// order). Returns false at end of input. Only the query, subject, and e-value fields are examined, and each
+	// line is scanned once. Subject strings aren't built unless getBlockSubject() asks for them. If a subject
+	// appears more than once, the last e-value wins.
+	//
+	boolean readBlock() throws IOException
+	{
+		CharSequence line = lines.readLine();
+		if (line == null)
+			return false;
 		
-		// Read lines while in hit block for this query.
-		Map<String, Double> unsortedSubjToE = new HashMap<>();
-		while ((line = rbr.readLine()) != null)
+		int queryEnd = indexOf(line, ',', 0);
+		if (queryEnd < 0)
+			throw new IllegalArgumentException("No fields in rpsblast line:\n" + line);
+		blockQueryChars = line.subSequence(0, queryEnd).toString();
+		blockQuery = utf8Bytes  ?  ByteLineSource.decodeUtf8(blockQueryChars)  :  blockQueryChars;
+		nHits = 0;
+		nSubjChars = 0;
+		subjCharBits = 0;
+		do
 		{
-			pieces = line.split(",");
-			if (!pieces[0].equals(query))
+			addHit(line, queryEnd);
+			line = lines.readLine();
+			if (line == null)
+				break;
+			if (!startsWithBlockQuery(line))
 			{
-				rbr.push(line);
+				lines.unread();
 				break;
 			}
-			String subj = pieces[1].substring(pieces[1].lastIndexOf("|") +1);
-			Double e = Double.valueOf(pieces[10]);
-			unsortedSubjToE.put(subj, e);
+		} while (true);
+		
+		sortBlockByE();
+		return true;
+	}
+	
+	
+	// True if the line's 1st field is the current block's query.
+	private boolean startsWithBlockQuery(CharSequence line)
+	{
+		int queryLen = blockQueryChars.length();
+		if (line.length() <= queryLen  ||  line.charAt(queryLen) != ',')
+			return false;
+		for (int i=0; i<queryLen; i++)
+			if (line.charAt(i) != blockQueryChars.charAt(i))
+				return false;
+		return true;
+	}
+	
+	
+	private static int indexOf(CharSequence line, char ch, int from)
+	{
+		for (int i=from; i<line.length(); i++)
+			if (line.charAt(i) == ch)
+				return i;
+		return -1;
+	}
+	
+	
+	private static int lastIndexOf(CharSequence line, char ch, int from)
+	{
+		for (int i=from; i>=0; i--)
+			if (line.charAt(i) == ch)
+				return i;
+		return -1;
+	}
+	
+	
+	private void addHit(CharSequence line, int queryEnd)
+	{
+		// Subject is field 1, after its last '|'.
+		int subjFieldEnd = indexOf(line, ',', queryEnd + 1);
+		if (subjFieldEnd < 0)
+			throw new IllegalArgumentException("No subject field in rpsblast line:\n" + line);
+		int subjStart = lastIndexOf(line, '|', subjFieldEnd - 1) + 1;
+		if (subjStart <= queryEnd)
+			subjStart = queryEnd + 1;
+		
+		// E-value is field 10. Skip to the comma that ends field 9.
+		int eStart = subjFieldEnd;
+		for (int field=2; field<=9; field++)
+		{
+			eStart = indexOf(line, ',', eStart + 1);
+			if (eStart < 0)
+				throw new IllegalArgumentException("No e-value field in rpsblast line:\n" + line);
 		}
+		eStart++;
+		int eEnd = indexOf(line, ',', eStart);
+		if (eEnd < 0)
+			eEnd = line.length();
+		double e = parseEValue(line, eStart, eEnd);
 		
-		// Sort into a report.
-		ConservedDomainReport ret = new ConservedDomainReport(query);
-		unsortedSubjToE.keySet()
-			.stream()
-			.sorted((s1, s2) -> (int)Math.signum(unsortedSubjToE.get(s1)-unsortedSubjToE.get(s2)))
-			.forEach(subj -> ret.put(subj, unsortedSubjToE.get(subj)));
+		// Repeated subject: last one wins.
+		int subjLen = subjFieldEnd - subjStart;
+		for (int i=0; i<nHits; i++)
+		{
+			if (subjEnds[i] - subjStarts[i] == subjLen  &&  subjectMatches(i, line, subjStart))
+			{
+				es[i] = e;
+				return;
+			}
+		}
+		
+		if (nHits == es.length)
+			growBlock();
+		if (nSubjChars + subjLen > subjChars.length)
+			subjChars = Arrays.copyOf(subjChars, Math.max(2 * subjChars.length, nSubjChars + subjLen));
+		for (int i=0; i<subjLen; i++)
+		{
+			char ch = line.charAt(subjStart + i);
+			subjChars[nSubjChars + i] = ch;
+			subjCharBits |= ch;
+		}
+		subjStarts[nHits] = nSubjChars;
+		subjEnds[nHits] = nSubjChars + subjLen;
+		nSubjChars += subjLen;
+		es[nHits] = e;
+		pssmIds[nHits] = parsePssmId(line, subjStart, subjFieldEnd);
+		nHits++;
+	}
 	
-		return ret;
+	
+	private boolean subjectMatches(int hit, CharSequence line, int subjStart)
+	{
+		for (int i=subjStarts[hit], j=subjStart; i<subjEnds[hit]; i++, j++)
+			if (subjChars[i] != line.charAt(j))
+				return false;
+		return true;
+	}
+	
+	
+	// -1 unless the subject is a numeric pssm id, as in local rpsblast output ("gnl|CDD|238833").
+	private static int parsePssmId(CharSequence line, int start, int end)
+	{
+		return PssmCOInessTable.parseCanonicalId(line, start, end);
+	}
+	
+	
+	private final static double[]		POWERS_OF_10		= 
+	{
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	
+	//
+	// Same result as Double.parseDouble(). When the value has at most 15 significant digits and a decimal 
+	// exponent within +-22, the digits and the power of 10 are both exact doubles, so 1 multiply or divide
+	// gives the correctly rounded value without building a String. Anything else goes to Double.parseDouble().
+	//
+	static double parseEValue(CharSequence s, int start, int end)
+	{
+		int i = start;
+		boolean negative = (i < end  &&  s.charAt(i) == '-');
+		if (negative  ||  (i < end  &&  s.charAt(i) == '+'))
+			i++;
+		long mantissa = 0;
+		int nSigDigits = 0;
+		int nDigits = 0;
+		int exp10 = 0;
+		boolean seenPoint = false;
+		for (; i<end; i++)
+		{
+			char ch = s.charAt(i);
+			if (ch >= '0'  &&  ch <= '9')
+			{
+				nDigits++;
+				if (mantissa == 0  &&  ch == '0')
+				{
+					if (seenPoint)
+						exp10--;
+					continue;
+				}
+				if (++nSigDigits > 15)
+					return Double.parseDouble(s.subSequence(start, end).toString());
+				mantissa = 10*mantissa + (ch - '0');
+				if (seenPoint)
+					exp10--;
+			}
+			else if (ch == '.'  &&  !seenPoint)
+				seenPoint = true;
+			else
+				break;
+		}
+		if (nDigits == 0)
+			return Double.parseDouble(s.subSequence(start, end).toString());
+		if (i < end)
+		{
+			char ch = s.charAt(i);
+			if (ch != 'e'  &&  ch != 'E')
+				return Double.parseDouble(s.subSequence(start, end).toString());
+			i++;
+			boolean negExp = (i < end  &&  s.charAt(i) == '-');
+			if (negExp  ||  (i < end  &&  s.charAt(i) == '+'))
+				i++;
+			if (i == end  ||  end - i > 4)
+				return Double.parseDouble(s.subSequence(start, end).toString());
+			int exp = 0;
+			for (; i<end; i++)
+			{
+				char digit = s.charAt(i);
+				if (digit < '0'  ||  digit > '9')
+					return Double.parseDouble(s.subSequence(start, end).toString());
+				exp = 10*exp + (digit - '0');
+			}
+			exp10 += negExp  ?  -exp  :  exp;
+		}
+		double value;
+		if (mantissa == 0)
+			value = 0;
+		else if (exp10 >= 0  &&  exp10 <= 22)
+			value = mantissa * POWERS_OF_10[exp10];
+		else if (exp10 < 0  &&  exp10 >= -22)
+			value = mantissa / POWERS_OF_10[-exp10];
+		else
+			return Double.parseDouble(s.subSequence(start, end).toString());
+		return negative  ?  -value  :  value;
+	}
+	
+	
+	private void growBlock()
+	{
+		int newLen = 2 * es.length;
+		subjStarts = Arrays.copyOf(subjStarts, newLen);
+		subjEnds = Arrays.copyOf(subjEnds, newLen);
+		es = Arrays.copyOf(es, newLen);
+		pssmIds = Arrays.copyOf(pssmIds, newLen);
+		order = new int[newLen];
+		mergeTmp = new int[newLen];
+	}
+	
+	
+	// Stable index sort by e-value. Insertion sort for the usual <= 10 hits, merge sort for long blocks.
+	private void sortBlockByE()
+	{
+		for (int i=0; i<nHits; i++)
+			order[i] = i;
+		if (nHits <= 16)
+		{
+			for (int i=1; i<nHits; i++)
+			{
+				int index = order[i];
+				double e = es[index];
+				int j = i - 1;
+				while (j >= 0  &&  Double.compare(es[order[j]], e) > 0)
+				{
+					order[j+1] = order[j];
+					j--;
+				}
+				order[j+1] = index;
+			}
+			return;
+		}
+		
+		int[] src = order;
+		int[] dest = mergeTmp;
+		for (int width=1; width<nHits; width*=2)
+		{
+			for (int lo=0; lo<nHits; lo+=2*width)
+			{
+				int mid = Math.min(lo + width, nHits);
+				int hi = Math.min(lo + 2*width, nHits);
+				int i = lo;
+				int j = mid;
+				for (int k=lo; k<hi; k++)
+				{
+					if (i < mid  &&  (j >= hi  ||  Double.compare(es[src[i]], es[src[j]]) <= 0))
+						dest[k] = src[i++];
+					else
+						dest[k] = src[j++];
+				}
+			}
+			int[] swap = src;
+			src = dest;
+			dest = swap;
+		}
+		if (src != order)
+			System.arraycopy(src, 0, order, 0, nHits);
+	}
+	
+	
+	//
+	// Accessors for the block most recently read by readBlock(). Ranks are in increasing e-value order.
+	//
+	String getBlockQuery()
+	{
+		return blockQuery;
+	}
+	
+	
+	int getBlockSize()
+	{
+		return nHits;
+	}
+	
+	
+	String getBlockSubject(int rank)
+	{
+		int index = order[rank];
+		String subject = new String(subjChars, subjStarts[index], subjEnds[index] - subjStarts[index]);
+		return (utf8Bytes  &&  subjCharBits >= 0x80)  ?  ByteLineSource.decodeUtf8(subject)  :  subject;
+	}
+	
+	
+	double getBlockE(int rank)
+	{
+		return es[order[rank]];
+	}
+	
+	
+	// -1 if the subject isn't a numeric pssm id.
+	int getBlockPssmId(int rank)
+	{
+		return pssmIds[order[rank]];
 	}
 	
 	
-	public void close()
+	public void close() throws IOException
 	{
 		open = false;
+		if (ownsReader)
+			lines.close();
 	}	
 }
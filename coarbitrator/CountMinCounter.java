@@ -0,0 +1,252 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    CountMinCounter.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+
+
+//
+// Approximate bin counter in constant memory, for tallies with too many bins to hold exactly (e.g. subjects 
+// of every hit in the full blastp output). Counts live in a Count-Min sketch: depth rows of width counters, 
+// each bin hashed to 1 counter per row, and the estimate is the smallest of a bin's counters. Estimates never
+// undercount; with the default width of 2^16 and depth of 5, an estimate exceeds the true count by more than 
+// e/width of the total count (about 0.004%) with probability at most e^-depth (under 1%).
+//
+// The bins themselves aren't kept, except for the heaviest: up to nHeavyHitters candidates whose estimated 
+// counts are the largest seen so far. A bin whose true count is well above total/nHeavyHitters is among them
+// with high probability, but not certainly: a bin is only considered when it's bumped, against estimates 
+// that can run high, so an early heavy bin can be evicted and later re-enter with a partial count. 
+// topK() and keysByPopulationDescending() report the candidates.
+//
+// Counters with the same width and depth merge by summing the sketches. Candidates from both are re-estimated
+// against the summed sketch, and the heaviest survive.
+//
+
+
+public class CountMinCounter<K> implements java.io.Serializable
+{
+	private static final long serialVersionUID = 8812730456190283746L;
+	private final static int		DFLT_WIDTH				= 1 << 16;
+	private final static int		DFLT_DEPTH				= 5;
+	private final static int		DFLT_N_HEAVY_HITTERS	= 100;
+	
+	private final int				width;
+	private final int				depth;
+	private final int				nHeavyHitters;
+	private final long[]			sketch;				// depth rows of width
+	private long					sumOfAllCounts;
+	private HashMap<K, long[]>		candidates;			// bin -> estimated count
+	private long					minCandidateCount;	// lower bound on the least candidate's count
+	
+	
+	public CountMinCounter()
+	{
+		this(DFLT_WIDTH, DFLT_DEPTH, DFLT_N_HEAVY_HITTERS);
+	}
+	
+	
+	public CountMinCounter(int width, int depth, int nHeavyHitters)
+	{
+		if (width < 1  ||  depth < 1  ||  nHeavyHitters < 0)
+			throw new IllegalArgumentException("Bad sketch dimensions: width=" + width + ", depth=" + depth + 
+				", nHeavyHitters=" + nHeavyHitters);
+		this.width = width;
+		this.depth = depth;
+		this.nHeavyHitters = nHeavyHitters;
+		sketch = new long[width * depth];
+		candidates = new HashMap<>();
+	}
+	
+	
+	public String toString()
+	{
+		String s = "";
+		for (K key: keysByPopulationDescending())
+			s += "\n  " + key + ": ~" + candidates.get(key)[0];
+		s += "\n" + candidates.size() + " heavy hitters of ~" + sumOfAllCounts + " total count";
+		return s;
+	}
+	
+	
+	public void bumpCountForBin(K bin)
+	{
+		bumpCountForBin(bin, 1);
+	}
+	
+	
+	public void bumpCountForBin(K bin, long delta)
+	{
+		if (delta < 0)
+			throw new IllegalArgumentException("Count-Min counts can't go down: " + delta);
+		long hash = SketchHash.hash64(bin);
+		long estimate = Long.MAX_VALUE;
+		for (int row=0; row<depth; row++)
+		{
+			int index = indexOf(hash, row);
+			sketch[index] += delta;
+			estimate = Math.min(estimate, sketch[index]);
+		}
+		sumOfAllCounts += delta;
+		offerCandidate(bin, estimate);
+	}
+	
+	
+	// Row i uses h1 + i*h2, from the 2 halves of the hash.
+	private int indexOf(long hash, int row)
+	{
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32);
+		int col = Math.floorMod(h1 + row*h2, width);
+		return row*width + col;
+	}
+	
+	
+	private long estimate(long hash)
+	{
+		long estimate = Long.MAX_VALUE;
+		for (int row=0; row<depth; row++)
+			estimate = Math.min(estimate, sketch[indexOf(hash, row)]);
+		return estimate;
+	}
+	
+	
+	private void offerCandidate(K bin, long estimate)
+	{
+		if (nHeavyHitters == 0)
+			return;
+		long[] count = candidates.get(bin);
+		if (count != null)
+		{
+			count[0] = estimate;
+			return;
+		}
+		if (candidates.size() < nHeavyHitters)
+		{
+			candidates.put(bin, new long[]{estimate});
+			minCandidateCount = Math.min(minCandidateCount, estimate);
+			return;
+		}
+		
+		// Candidates' counts only grow, so minCandidateCount is stale-low. Only look for the real least 
+		// candidate when the newcomer might beat it.
+		if (estimate <= minCandidateCount)
+			return;
+		K leastBin = null;
+		long leastCount = Long.MAX_VALUE;
+		for (Map.Entry<K, long[]> entry: candidates.entrySet())
+		{
+			if (entry.getValue()[0] < leastCount)
+			{
+				leastCount = entry.getValue()[0];
+				leastBin = entry.getKey();
+			}
+		}
+		if (estimate > leastCount)
+		{
+			candidates.remove(leastBin);
+			candidates.put(bin, new long[]{estimate});
+			leastCount = estimate;
+			for (long[] c: candidates.values())
+				leastCount = Math.min(leastCount, c[0]);
+		}
+		minCandidateCount = leastCount;
+	}
+	
+	
+	// Never less than the true count.
+	public long getCountForBin(K bin)
+	{
+		return estimate(SketchHash.hash64(bin));
+	}
+	
+	
+	// Exact.
+	public long getSumOfAllCounts()
+	{
+		return sumOfAllCounts;
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return sumOfAllCounts == 0;
+	}
+	
+	
+	public void clear()
+	{
+		Arrays.fill(sketch, 0);
+		sumOfAllCounts = 0;
+		candidates.clear();
+		minCandidateCount = 0;
+	}
+	
+	
+	// Heavy-hitter candidates, most populous first.
+	public List<K> keysByPopulationDescending()
+	{
+		return topK(candidates.size());
+	}
+	
+	
+	// The k most populous heavy-hitter candidates, by estimated count. k is effectively capped at nHeavyHitters.
+	@SuppressWarnings("unchecked")
+	public List<K> topK(int k)
+	{
+		Object[] keys = candidates.keySet().toArray();
+		long[] counts = new long[keys.length];
+		for (int i=0; i<keys.length; i++)
+			counts[i] = candidates.get(keys[i])[0];
+		List<K> ret = new ArrayList<K>();
+		for (int index: PopulationOrder.topK(counts, keys.length, k))
+			ret.add((K)keys[index]);
+		return ret;
+	}
+	
+	
+	// Adds that's counts to this counter's.
+	public void add(CountMinCounter<K> that)
+	{
+		if (that.width != this.width  ||  that.depth != this.depth)
+			throw new IllegalArgumentException("Can't merge " + that.depth + "x" + that.width + " sketch into " + 
+				depth + "x" + width + " sketch");
+		for (int i=0; i<sketch.length; i++)
+			sketch[i] += that.sketch[i];
+		sumOfAllCounts += that.sumOfAllCounts;
+		
+		// Re-estimate every candidate against the summed sketch, and keep the heaviest.
+		Set<K> union = new HashSet<K>(candidates.keySet());
+		union.addAll(that.candidates.keySet());
+		candidates.clear();
+		minCandidateCount = 0;
+		for (K bin: union)
+			offerCandidate(bin, estimate(SketchHash.hash64(bin)));
+	}
+	
+	
+	// Returns a new counter; neither input changes.
+	public CountMinCounter<K> combineWith(CountMinCounter<K> that)
+	{
+		CountMinCounter<K> ret = new CountMinCounter<K>(width, depth, nHeavyHitters);
+		ret.add(this);
+		ret.add(that);
+		return ret;
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    CounterSnapshot.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+//
+// Compact binary snapshots of bin counters, for combining statistics from shards of a run. Unlike Java 
+// serialization of the counters, the format doesn't depend on the classes, and snapshots can be merged by 
+// streaming: keys are sorted, so k snapshots merge in 1 pass holding 1 entry per input.
+//
+// Format:
+//   Header: magic "CONS", format version byte, key type byte, label (varint length + UTF-8).
+//   Entries, in ascending key order, each an ENTRY tag byte then:
+//     STRING keys: varint #chars shared with the previous key, varint #bytes of the rest, the rest in UTF-8
+//     INT or LONG keys: zigzag varint of the 1st key, varint difference from the previous key after that
+//     Count: varint
+//   Trailer: END tag byte, varint #entries, varint sum of counts.
+//
+// Counts can't be negative. Keys must be unique; merging sums the counts of equal keys.
+//
+
+
+public class CounterSnapshot
+{
+	private final static byte[]		MAGIC			= { 'C', 'O', 'N', 'S' };
+	private final static int		FORMAT_VERSION	= 1;
+	private final static int		ENTRY			= 1;
+	private final static int		END				= 0;
+	
+	
+	public enum KeyType
+	{
+		STRING, INT, LONG;
+		
+		static KeyType forKey(Object key)
+		{
+			if (key instanceof String)
+				return STRING;
+			else if (key instanceof Integer)
+				return INT;
+			else if (key instanceof Long)
+				return LONG;
+			else
+				throw new IllegalArgumentException("Can't snapshot keys of " + key.getClass().getName());
+		}
+	}
+	
+	
+	private CounterSnapshot()		{ }
+	
+	
+	public static class Writer implements Closeable
+	{
+		private final DataOutputStream		out;
+		private final KeyType				keyType;
+		private Object						prevKey;
+		private long						nEntries;
+		private long						sumOfCounts;
+		
+		
+		public Writer(OutputStream os, KeyType keyType, String label) throws IOException
+		{
+			out = new DataOutputStream(new BufferedOutputStream(os));
+			this.keyType = keyType;
+			out.write(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			out.writeByte(keyType.ordinal());
+			writeBytes(label.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		
+		// Keys must be written in strictly ascending order.
+		public void write(Object key, long count) throws IOException
+		{
+			if (KeyType.forKey(key) != keyType)
+				throw new IllegalArgumentException("Key " + key + " isn't of type " + keyType);
+			if (count < 0)
+				throw new IllegalArgumentException("Negative count " + count + " for key " + key);
+			if (prevKey != null  &&  compare(prevKey, key) >= 0)
+				throw new IllegalArgumentException("Key " + key + " isn't after " + prevKey);
+			out.writeByte(ENTRY);
+			switch (keyType)
+			{
+				case STRING:
+					String s = (String)key;
+					int nShared = (prevKey == null)  ?  0  :  sharedPrefixLength((String)prevKey, s);
+					writeVarint(nShared);
+					writeBytes(s.substring(nShared).getBytes(StandardCharsets.UTF_8));
+					break;
+				case INT:
+				case LONG:
+					long n = ((Number)key).longValue();
+					if (prevKey == null)
+						writeVarint((n << 1) ^ (n >> 63));
+					else
+						writeVarint(n - ((Number)prevKey).longValue());
+					break;
+			}
+			writeVarint(count);
+			prevKey = key;
+			nEntries++;
+			sumOfCounts += count;
+		}
+		
+		
+		public void close() throws IOException
+		{
+			out.writeByte(END);
+			writeVarint(nEntries);
+			writeVarint(sumOfCounts);
+			out.close();
+		}
+		
+		
+		// Unsigned LEB128: 7 bits per byte, low bits first, high bit set on all but the last byte.
+		private void writeVarint(long n) throws IOException
+		{
+			while ((n & ~0x7FL) != 0)
+			{
+				out.writeByte((int)((n & 0x7F) | 0x80));
+				n >>>= 7;
+			}
+			out.writeByte((int)n);
+		}
+		
+		
+		private void writeBytes(byte[] bytes) throws IOException
+		{
+			writeVarint(bytes.length);
+			out.write(bytes);
+		}
+		
+		
+		private static int sharedPrefixLength(String s1, String s2)
+		{
+			int n = Math.min(s1.length(), s2.length());
+			int i = 0;
+			while (i < n  &&  s1.charAt(i) == s2.charAt(i))
+				i++;
+			// Don't split a surrogate pair.
+			if (i > 0  &&  Character.isHighSurrogate(s1.charAt(i-1)))
+				i--;
+			return i;
+		}
+	}  // End of static inner class Writer
+	
+	
+	//
+	// Call next() before each entry, including the 1st. The trailer is checked when next() reaches it.
+	//
+	public static class Reader implements Closeable
+	{
+		private final DataInputStream		in;
+		private final KeyType				keyType;
+		private final String				label;
+		private Object						key;
+		private long						count;
+		private long						nEntries;
+		private long						sumOfCounts;
+		private boolean						done;
+		
+		
+		public Reader(InputStream is) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(is));
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("Not a counter snapshot");
+			int version = in.readUnsignedByte();
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported counter snapshot version " + version);
+			int keyTypeOrdinal = in.readUnsignedByte();
+			if (keyTypeOrdinal >= KeyType.values().length)
+				throw new IOException("Unknown key type " + keyTypeOrdinal + " in counter snapshot");
+			keyType = KeyType.values()[keyTypeOrdinal];
+			label = new String(readBytes(), StandardCharsets.UTF_8);
+		}
+		
+		
+		public boolean next() throws IOException
+		{
+			if (done)
+				return false;
+			int tag = in.readUnsignedByte();
+			if (tag == END)
+			{
+				done = true;
+				key = null;
+				if (readVarint() != nEntries  ||  readVarint() != sumOfCounts)
+					throw new IOException("Counter snapshot trailer doesn't match its entries");
+				return false;
+			}
+			else if (tag != ENTRY)
+				throw new IOException("Bad tag " + tag + " in counter snapshot");
+			switch (keyType)
+			{
+				case STRING:
+					int nShared = (int)readVarint();
+					String rest = new String(readBytes(), StandardCharsets.UTF_8);
+					key = (key == null)  ?  rest  :  ((String)key).substring(0, nShared) + rest;
+					break;
+				case INT:
+				case LONG:
+					long delta = readVarint();
+					long n = (key == null)  ?  (delta >>> 1) ^ -(delta & 1)  :  ((Number)key).longValue() + delta;
+					key = (keyType == KeyType.INT)  ?  (Object)(int)n  :  (Object)n;
+					break;
+			}
+			count = readVarint();
+			nEntries++;
+			sumOfCounts += count;
+			return true;
+		}
+		
+		
+		public Object getKey()				{ return key; }
+		public long getCount()				{ return count; }
+		public KeyType getKeyType()			{ return keyType; }
+		public String getLabel()			{ return label; }
+		
+		
+		public void close() throws IOException
+		{
+			in.close();
+		}
+		
+		
+		private long readVarint() throws IOException
+		{
+			long n = 0;
+			for (int shift=0; shift<64; shift+=7)
+			{
+				int b = in.readUnsignedByte();
+				n |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return n;
+			}
+			throw new IOException("Malformed varint in counter snapshot");
+		}
+		
+		
+		private byte[] readBytes() throws IOException
+		{
+			long len = readVarint();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Bad length " + len + " in counter snapshot");
+			byte[] bytes = new byte[(int)len];
+			in.readFully(bytes);
+			return bytes;
+		}
+	}  // End of static inner class Reader
+	
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object k1, Object k2)
+	{
+		return ((Comparable)k1).compareTo(k2);
+	}
+	
+	
+	// Empty counters are saved with STRING keys; merge() accepts them alongside any key type.
+	private static KeyType keyTypeOf(Collection<?> keys)
+	{
+		return keys.isEmpty()  ?  KeyType.STRING  :  KeyType.forKey(keys.iterator().next());
+	}
+	
+	
+	public static <K> void save(HashBinCounter<K> ctr, File f, String label) throws IOException
+	{
+		Object[] keys = ctr.keySet().toArray();
+		KeyType keyType = keyTypeOf(ctr.keySet());
+		Arrays.sort(keys, CounterSnapshot::compare);
+		try
+		(
+			Writer writer = new Writer(new FileOutputStream(f), keyType, label);
+		)
+		{
+			for (Object key: keys)
+				writer.write(key, ctr.get(key)[0]);
+		}
+	}
+	
+	
+	public static <K> void save(TreeBinCounter<K> ctr, File f, String label) throws IOException
+	{
+		KeyType keyType = keyTypeOf(ctr.keySet());
+		Collection<Object> keys = new ArrayList<>(ctr.keySet());
+		if (ctr.comparator() != null)
+		{
+			Object[] sorted = keys.toArray();
+			Arrays.sort(sorted, CounterSnapshot::compare);
+			keys = Arrays.asList(sorted);
+		}
+		try
+		(
+			Writer writer = new Writer(new FileOutputStream(f), keyType, label);
+		)
+		{
+			for (Object key: keys)
+				writer.write(key, ctr.get(key)[0]);
+		}
+	}
+	
+	
+	// The caller is responsible for K matching the snapshot's key type.
+	@SuppressWarnings("unchecked")
+	public static <K> TreeBinCounter<K> load(File f) throws IOException
+	{
+		TreeBinCounter<K> ctr = new TreeBinCounter<>();
+		try
+		(
+			Reader reader = new Reader(new FileInputStream(f));
+		)
+		{
+			while (reader.next())
+				ctr.bumpCountForBin((K)reader.getKey(), reader.getCount());
+		}
+		return ctr;
+	}
+	
+	
+	//
+	// K-way merge: 1 pass over each input, holding 1 entry per input in a heap. The output's label is the 
+	// 1st input's. Returns the number of entries written.
+	//
+	public static long merge(List<File> inputs, File output) throws IOException
+	{
+		List<Reader> readers = new ArrayList<>();
+		try
+		{
+			for (File f: inputs)
+				readers.add(new Reader(new FileInputStream(f)));
+			if (readers.isEmpty())
+				throw new IllegalArgumentException("No snapshots to merge");
+			
+			// Prime the heap with each input's 1st entry. Inputs with no entries don't constrain the key type.
+			KeyType keyType = null;
+			for (Reader reader: readers)
+			{
+				if (!reader.next())
+					continue;
+				if (keyType == null)
+					keyType = reader.getKeyType();
+				else if (reader.getKeyType() != keyType)
+					throw new IOException("Can't merge " + reader.getKeyType() + " keys with " + keyType + " keys");
+			}
+			if (keyType == null)
+				keyType = readers.get(0).getKeyType();
+			PriorityQueue<Reader> heap = new PriorityQueue<>(readers.size(), (r1, r2) -> compare(r1.getKey(), r2.getKey()));
+			for (Reader reader: readers)
+				if (reader.getKey() != null)
+					heap.add(reader);
+			
+			long nWritten = 0;
+			try
+			(
+				Writer writer = new Writer(new FileOutputStream(output), keyType, readers.get(0).getLabel());
+			)
+			{
+				while (!heap.isEmpty())
+				{
+					Reader reader = heap.poll();
+					Object key = reader.getKey();
+					long count = reader.getCount();
+					if (reader.next())
+						heap.add(reader);
+					while (!heap.isEmpty()  &&  compare(heap.peek().getKey(), key) == 0)
+					{
+						reader = heap.poll();
+						count += reader.getCount();
+						if (reader.next())
+							heap.add(reader);
+					}
+					writer.write(key, count);
+					nWritten++;
+				}
+			}
+			return nWritten;
+		}
+		finally
+		{
+			for (Reader reader: readers)
+				reader.close();
+		}
+	}
+	
+	
+	private static void sop(Object x)
+	{
+		System.out.println(x);
+	}
+	
+	
+	private static void printUsage()
+	{
+		sop("Usage: CounterSnapshot merge output_snapshot input_snapshot ...");
+		sop("   or: CounterSnapshot dump snapshot");
+	}
+	
+	
+	public static void main(String[] args)
+	{
+		if (args.length < 2)
+		{
+			printUsage();
+			System.exit(1);
+		}
+		try
+		{
+			if (args[0].equals("merge")  &&  args.length >= 3)
+			{
+				List<File> inputs = new ArrayList<>();
+				for (int i=2; i<args.length; i++)
+					inputs.add(new File(args[i]));
+				long nEntries = merge(inputs, new File(args[1]));
+				sop("Merged " + inputs.size() + " snapshots into " + nEntries + " entries in " + args[1]);
+			}
+			else if (args[0].equals("dump"))
+			{
+				try
+				(
+					Reader reader = new Reader(new FileInputStream(args[1]));
+				)
+				{
+					sop("# " + reader.getLabel() + " (" + reader.getKeyType() + " keys)");
+					while (reader.next())
+						sop(reader.getKey() + "\t" + reader.getCount());
+				}
+			}
+			else
+			{
+				printUsage();
+				System.exit(1);
+			}
+		}
+		catch (IOException x)
+		{
+			sop("Trouble with counter snapshot: " + x.getMessage());
+			System.exit(2);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    EnumBinCounter.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+
+
+//
+// Bin counter for enum keys, backed by an int[] indexed by ordinal. Same API as HashBinCounter, but bumping 
+// never allocates. A bin exists once it has been bumped, even by 0.
+//
+
+
+public class EnumBinCounter<E extends Enum<E>> implements java.io.Serializable
+{
+	private static final long serialVersionUID = -1318046212340183394L;
+	
+	private final Class<E>			enumClass;
+	private final E[]				universe;
+	private final int[]				counts;
+	private final boolean[]			present;
+	private int						nBins;
+	
+	
+	public EnumBinCounter(Class<E> enumClass)
+	{
+		this.enumClass = enumClass;
+		universe = enumClass.getEnumConstants();
+		counts = new int[universe.length];
+		present = new boolean[universe.length];
+	}
+
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (E key: universe)
+			if (present[key.ordinal()])
+				sb.append("\n  ").append(key).append(": ").append(counts[key.ordinal()]);
+		sb.append('\n').append(nBins).append(" bins");
+		return sb.toString();
+	}
+	
+	
+	public void bumpCountForBin(E bin)
+	{
+		bumpCountForBin(bin, 1);
+	}
+	
+	
+	public void bumpCountForBin(E bin, int delta)
+	{
+		int i = bin.ordinal();
+		if (!present[i])
+		{
+			present[i] = true;
+			nBins++;
+		}
+		counts[i] += delta;
+	}
+	
+	
+	// -1 if bin doesn't exist.
+	public int getCountForBin(E bin)
+	{
+		return present[bin.ordinal()]  ?  counts[bin.ordinal()]  :  -1;
+	}
+	
+	
+	public int getCountForBinZeroDefault(E bin)
+	{
+		return counts[bin.ordinal()];
+	}
+	
+	
+	public boolean containsKey(E bin)
+	{
+		return present[bin.ordinal()];
+	}
+	
+	
+	// Number of bins, not sum of counts.
+	public int size()
+	{
+		return nBins;
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return nBins == 0;
+	}
+	
+	
+	public void clear()
+	{
+		Arrays.fill(counts, 0);
+		Arrays.fill(present, false);
+		nBins = 0;
+	}
+	
+	
+	// A copy, in ordinal order.
+	public EnumSet<E> keySet()
+	{
+		EnumSet<E> ret = EnumSet.noneOf(enumClass);
+		for (E key: universe)
+			if (present[key.ordinal()])
+				ret.add(key);
+		return ret;
+	}
+	
+	
+	public int getSumOfAllCounts()
+	{
+		int sum = 0;
+		for (int count: counts)
+			sum += count;
+		return sum;
+	}
+	
+	
+	public void add(EnumBinCounter<E> that)
+	{
+		for (int i=0; i<counts.length; i++)
+			if (that.present[i])
+				this.bumpCountForBin(universe[i], that.counts[i]);
+	}
+	
+	
+	// Lowest ordinal if there's a tie.
+	public E getKeyWithMaxPopulation()
+	{
+		E winnerKey = null;
+		for (E key: universe)
+			if (present[key.ordinal()]  &&  (winnerKey == null  ||  counts[key.ordinal()] > counts[winnerKey.ordinal()]))
+				winnerKey = key;
+		return winnerKey;
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ExternalHitSorter.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Sorts the lines of a tabular blast output file by (query, e-value) in bounded memory. Lines are read 
+// into memory until the budget is used up, sorted, and spilled to a temporary run file. Runs are then 
+// combined by a k-way merge. Lines are kept verbatim, so the output can be read by anything that reads the 
+// input. Sorting is stable: lines with the same query and e-value keep their input order.
+//
+// ConserverDomainReportReader needs all hits for a query to be contiguous, which isn't true when the
+// outputs of several rpsblast shards are concatenated. Sorting restores contiguity.
+//
+
+
+public class ExternalHitSorter 
+{
+	private final static long				DFLT_MAX_BYTES_IN_MEMORY	= 256L << 20;
+	private final static int				MAX_FAN_IN					= 128;
+	private final static int				LINE_OVERHEAD_BYTES			= 96;		// String, char[], Line, ref
+	
+	private long							maxBytesInMemory;
+	private char							delim;
+	private File							tmpDir;
+	
+	
+	public ExternalHitSorter()
+	{
+		this(DFLT_MAX_BYTES_IN_MEMORY, ',', null);
+	}
+	
+	
+	// tmpDir may be null for the system default.
+	public ExternalHitSorter(long maxBytesInMemory, char delim, File tmpDir)
+	{
+		this.maxBytesInMemory = maxBytesInMemory;
+		this.delim = delim;
+		this.tmpDir = tmpDir;
+	}
+	
+	
+	private static class Line implements Comparable<Line>
+	{
+		String			query;
+		double			e;
+		String			text;
+		int				runIndex;		// for stable merging
+		
+		Line(String text, char delim, int runIndex)
+		{
+			this.text = text;
+			this.runIndex = runIndex;
+			query = TabularBlastHit.parseQuery(text, delim);
+			e = TabularBlastHit.parseEValue(text, delim);
+		}
+		
+		public int compareTo(Line that)
+		{
+			int cmp = this.query.compareTo(that.query);
+			if (cmp != 0)
+				return cmp;
+			if ((cmp = Double.compare(this.e, that.e)) != 0)
+				return cmp;
+			return Integer.compare(this.runIndex, that.runIndex);
+		}
+	}
+	
+	
+	//
+	// Returns a reader of the sorted lines. The final merge is streamed, so the sorted output is never written
+	// in full. Closing the reader deletes the run files; if no reader is returned, they're deleted here.
+	//
+	public BufferedReader openSorted(File f) throws IOException
+	{
+		List<File> runs = new ArrayList<>();
+		BufferedReader ret = null;
+		try
+		{
+			List<Line> inMemory = new ArrayList<>();
+			try (BufferedReader br = CompressedInputs.openReader(f))
+			{
+				long nBytes = 0;
+				String text;
+				while ((text = br.readLine()) != null)
+				{
+					if (text.trim().isEmpty()  ||  text.startsWith("#"))
+						continue;
+					inMemory.add(new Line(text, delim, 0));
+					nBytes += 2 * text.length() + LINE_OVERHEAD_BYTES;
+					if (nBytes >= maxBytesInMemory)
+					{
+						runs.add(spill(inMemory));
+						inMemory.clear();
+						nBytes = 0;
+					}
+				}
+			}
+			
+			// Everything fit in memory: no merge needed.
+			if (runs.isEmpty())
+			{
+				Collections.sort(inMemory);
+				ret = new BufferedReader(new LineSourceReader(inMemory.stream().map(line -> line.text).iterator(), runs));
+				return ret;
+			}
+			
+			if (!inMemory.isEmpty())
+				runs.add(spill(inMemory));
+			inMemory = null;
+			while (runs.size() > MAX_FAN_IN)
+			{
+				List<File> merged = mergePass(runs);
+				runs.clear();
+				runs.addAll(merged);
+			}
+			ret = new BufferedReader(new LineSourceReader(new RunMerger(runs), runs));
+			return ret;
+		}
+		finally
+		{
+			if (ret == null)
+				deleteAll(runs);
+		}
+	}
+	
+	
+	public void sort(File in, File out) throws IOException
+	{
+		try
+		(
+			BufferedReader br = openSorted(in);
+			BufferedWriter bw = new BufferedWriter(new FileWriter(out), 1 << 16);
+		)
+		{
+			String line;
+			while ((line = br.readLine()) != null)
+			{
+				bw.write(line);
+				bw.newLine();
+			}
+		}
+	}
+	
+	
+	private File spill(List<Line> sorted) throws IOException
+	{
+		Collections.sort(sorted);
+		File run = File.createTempFile("hits_", ".run", tmpDir);
+		boolean written = false;
+		try
+		{
+			try (BufferedWriter bw = new BufferedWriter(new FileWriter(run), 1 << 16))
+			{
+				for (Line line: sorted)
+				{
+					bw.write(line.text);
+					bw.newLine();
+				}
+			}
+			written = true;
+			return run;
+		}
+		finally
+		{
+			if (!written)
+				run.delete();
+		}
+	}
+	
+	
+	// Merges groups of MAX_FAN_IN runs into single runs. Input runs are deleted as they're merged. If this 
+	// throws, the runs it made are deleted and the caller still owns the input runs.
+	private List<File> mergePass(List<File> runs) throws IOException
+	{
+		List<File> merged = new ArrayList<>();
+		boolean done = false;
+		try
+		{
+			for (int i=0; i<runs.size(); i+=MAX_FAN_IN)
+			{
+				List<File> group = runs.subList(i, Math.min(runs.size(), i+MAX_FAN_IN));
+				File run = File.createTempFile("hits_", ".run", tmpDir);
+				merged.add(run);
+				try
+				(
+					RunMerger merger = new RunMerger(group);
+					BufferedWriter bw = new BufferedWriter(new FileWriter(run), 1 << 16);
+				)
+				{
+					while (merger.hasNext())
+					{
+						bw.write(merger.next());
+						bw.newLine();
+					}
+				}
+				deleteAll(group);
+			}
+			done = true;
+			return merged;
+		}
+		finally
+		{
+			if (!done)
+				deleteAll(merged);
+		}
+	}
+	
+	
+	private static void deleteAll(Collection<File> files)
+	{
+		for (File f: files)
+			f.delete();
+	}
+	
+	
+	//
+	// K-way merge of sorted run files. Ties are broken by run index, and runs are in input order, so the 
+	// merge is stable.
+	//
+	private class RunMerger implements Iterator<String>, Closeable
+	{
+		private BufferedReader[]		readers;
+		private PriorityQueue<Line>		heads;
+		
+		
+		RunMerger(List<File> runs) throws IOException
+		{
+			readers = new BufferedReader[runs.size()];
+			heads = new PriorityQueue<>(Math.max(1, runs.size()));
+			try
+			{
+				for (int i=0; i<readers.length; i++)
+				{
+					readers[i] = new BufferedReader(new FileReader(runs.get(i)), 1 << 16);
+					advance(i);
+				}
+			}
+			catch (IOException | RuntimeException x)
+			{
+				close();
+				throw x;
+			}
+		}
+		
+		
+		private void advance(int runIndex) throws IOException
+		{
+			String text = readers[runIndex].readLine();
+			if (text != null)
+				heads.add(new Line(text, delim, runIndex));
+		}
+		
+		
+		public boolean hasNext()
+		{
+			return !heads.isEmpty();
+		}
+		
+		
+		public String next()
+		{
+			Line line = heads.poll();
+			if (line == null)
+				throw new NoSuchElementException();
+			try
+			{
+				advance(line.runIndex);
+			}
+			catch (IOException x)
+			{
+				throw new UncheckedIOException(x);
+			}
+			return line.text;
+		}
+		
+		
+		public void close()
+		{
+			for (BufferedReader br: readers)
+			{
+				try
+				{
+					if (br != null)
+						br.close();
+				}
+				catch (IOException x) { }
+			}
+		}
+	}  // End of inner class RunMerger
+	
+	
+	//
+	// Presents an iterator of lines as a character stream. Closing deletes the run files.
+	//
+	private static class LineSourceReader extends Reader
+	{
+		private Iterator<String>		lines;
+		private List<File>				runs;
+		private String					current;
+		private int						pos;
+		
+		
+		LineSourceReader(Iterator<String> lines, List<File> runs)
+		{
+			this.lines = lines;
+			this.runs = runs;
+		}
+		
+		
+		public int read(char[] cbuf, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+			int n = 0;
+			try
+			{
+				while (n < len)
+				{
+					if (current == null)
+					{
+						if (!lines.hasNext())
+							break;
+						current = lines.next() + "\n";
+						pos = 0;
+					}
+					int nCopy = Math.min(len - n, current.length() - pos);
+					current.getChars(pos, pos + nCopy, cbuf, off + n);
+					pos += nCopy;
+					n += nCopy;
+					if (pos == current.length())
+						current = null;
+				}
+			}
+			catch (UncheckedIOException x)
+			{
+				throw x.getCause();
+			}
+			return (n == 0)  ?  -1  :  n;
+		}
+		
+		
+		public void close()
+		{
+			if (lines instanceof Closeable)
+			{
+				try
+				{
+					((Closeable)lines).close();
+				}
+				catch (IOException x) { }
+			}
+			deleteAll(runs);
+		}
+	}  // End of static inner class LineSourceReader
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2)
+		{
+			sop("Usage: java coarbitrator.ExternalHitSorter input.csv sorted_output.csv");
+			System.exit(1);
+		}
+		sop("START");
+		new ExternalHitSorter().sort(new File(args[0]), new File(args[1]));
+		sop("DONE");
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    FollowingFileInputStream.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+
+//
+// Reads a file that another process is still appending to, like "tail -f". At the current end of the file,
+// reads block until more data arrives, so a reader layered on top sees only complete lines and never a 
+// premature end of input. The stream ends when the done-marker file exists and everything has been read, or
+// when the file hasn't grown for the idle timeout.
+//
+// Waiting uses a WatchService on the file's directory, with polling as a fallback and as a backstop for file 
+// systems (e.g. NFS) that don't deliver change events.
+//
+
+
+public class FollowingFileInputStream extends InputStream
+{
+	private File						file;
+	private File						doneMarker;
+	private long						pollMillis;
+	private long						idleTimeoutMillis;
+	private FileChannel					channel;
+	private WatchService				watcher;
+	private long						lastGrowthTime;
+	private boolean						ended;
+	
+	
+	// doneMarker may be null, in which case only the idle timeout ends the stream.
+	public FollowingFileInputStream(File file, File doneMarker, long pollMillis, long idleTimeoutMillis) throws IOException
+	{
+		this.file = file;
+		this.doneMarker = doneMarker;
+		this.pollMillis = pollMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		lastGrowthTime = System.currentTimeMillis();
+		try
+		{
+			Path dir = file.getAbsoluteFile().getParentFile().toPath();
+			watcher = dir.getFileSystem().newWatchService();
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException | UnsupportedOperationException x)
+		{
+			watcher = null;
+		}
+	}
+	
+	
+	public int read() throws IOException
+	{
+		byte[] buf = new byte[1];
+		int n;
+		while ((n = read(buf, 0, 1)) == 0)
+			;
+		return (n < 0)  ?  -1  :  buf[0] & 0xff;
+	}
+	
+	
+	public int read(byte[] buf, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		while (!ended)
+		{
+			if (channel == null  &&  file.exists())
+				channel = FileChannel.open(file.toPath());
+			if (channel != null)
+			{
+				if (channel.size() < channel.position())
+					throw new IOException(file.getAbsolutePath() + " was truncated while being followed");
+				int n = channel.read(ByteBuffer.wrap(buf, off, len));
+				if (n > 0)
+				{
+					lastGrowthTime = System.currentTimeMillis();
+					return n;
+				}
+			}
+			
+			// At end of data. Check done marker before waiting, then read once more after seeing it, since the 
+			// writer may have appended between our read and its creating the marker.
+			if (doneMarker != null  &&  doneMarker.exists())
+			{
+				int n = (channel == null)  ?  -1  :  channel.read(ByteBuffer.wrap(buf, off, len));
+				if (n > 0)
+					return n;
+				ended = true;
+			}
+			else if (System.currentTimeMillis() - lastGrowthTime > idleTimeoutMillis)
+				ended = true;
+			else
+				awaitChange();
+		}
+		return -1;
+	}
+	
+	
+	private void awaitChange() throws IOException
+	{
+		try
+		{
+			if (watcher == null)
+			{
+				Thread.sleep(pollMillis);
+				return;
+			}
+			WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+			if (key != null)
+			{
+				key.pollEvents();
+				key.reset();
+			}
+		}
+		catch (InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while following " + file.getAbsolutePath());
+		}
+	}
+	
+	
+	public void close() throws IOException
+	{
+		ended = true;
+		if (watcher != null)
+			watcher.close();
+		if (channel != null)
+			channel.close();
+	}
+}
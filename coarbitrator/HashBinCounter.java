@@ -69,33 +69,45 @@ public class HashBinCounter<K> extends HashMap<K, int[]> implements java.io.Seri
 	}
 	
 	
-	public Vector<K> keysByPopulationAscending()
+	// Ties in no particular order.
+	public List<K> keysByPopulationAscending()
 	{
-		Map<Integer, Vector<K>> popToKeySet = new TreeMap<Integer, Vector<K>>();
-		for (K key: keySet())
-		{
-			int pop = get(key)[0];
-			Vector<K> keysForPop = popToKeySet.get(pop);
-			if (keysForPop == null)
-			{
-				keysForPop = new Vector<K>();
-				popToKeySet.put(pop, keysForPop);
-			}
-			keysForPop.add(key);
-		}
-		Vector<K> ret = new Vector<K>();
-		for (Vector<K> addMe: popToKeySet.values())
-			ret.addAll(addMe);
-		return ret;
+		return byIndex(PopulationOrder.ascending(countsInKeyOrder(), size()));
+	}
+	
+	
+	// Exact reverse of keysByPopulationAscending().
+	public List<K> keysByPopulationDescending()
+	{
+		return byIndex(PopulationOrder.descending(countsInKeyOrder(), size()));
+	}
+	
+	
+	// The first k of keysByPopulationDescending(), without sorting all the bins.
+	public List<K> topK(int k)
+	{
+		return byIndex(PopulationOrder.topK(countsInKeyOrder(), size(), k));
+	}
+	
+	
+	// In keySet() iteration order, which is stable as long as the map isn't modified.
+	private long[] countsInKeyOrder()
+	{
+		long[] counts = new long[size()];
+		int n = 0;
+		for (int[] count: values())
+			counts[n++] = count[0];
+		return counts;
 	}
 	
 	
-	public Vector<K> keysByPopulationDescending()
+	@SuppressWarnings("unchecked")
+	private List<K> byIndex(int[] indices)
 	{
-		Vector<K> ret = new Vector<K>(size());
-		Vector<K> ascending = keysByPopulationAscending();
-		for (int i=ascending.size()-1; i>=0; i--)
-			ret.add(ascending.get(i));
+		Object[] keys = keySet().toArray();
+		List<K> ret = new ArrayList<K>(indices.length);
+		for (int index: indices)
+			ret.add((K)keys[index]);
 		return ret;
 	}
 	
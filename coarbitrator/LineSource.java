@@ -0,0 +1,40 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    LineSource.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+
+
+//
+// Line input with 1 line of pushback, for readers that only know a record has ended when they've read the
+// 1st line of the next one. Lines may be reused buffers rather than Strings: a line is only valid until the 
+// next call to readLine() or close(). Call toString() on it to keep it.
+//
+
+
+public interface LineSource extends Closeable
+{
+	// Next line, without its terminator, or null at end of input.
+	public CharSequence readLine() throws IOException;
+	
+	
+	// The next readLine() returns the most recently read line again. Only that line can be unread, and only once.
+	public void unread();
+}
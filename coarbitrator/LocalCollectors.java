@@ -25,12 +25,28 @@ import java.util.stream.*;
 import java.util.stream.Collector.Characteristics;
 
 
+//
+// Collectors are stateless, so each kind is a single shared instance, and characteristic sets are built once.
+//
+
+
 public class LocalCollectors 
 {
+	private final static Set<Characteristics>	NONE						= Collections.emptySet();
+	private final static Set<Characteristics>	IDENTITY					= 
+		Collections.unmodifiableSet(EnumSet.of(Characteristics.IDENTITY_FINISH));
+	private final static Set<Characteristics>	IDENTITY_UNORDERED			= 
+		Collections.unmodifiableSet(EnumSet.of(Characteristics.IDENTITY_FINISH, Characteristics.UNORDERED));
+	private final static Set<Characteristics>	UNORDERED					= 
+		Collections.unmodifiableSet(EnumSet.of(Characteristics.UNORDERED));
+	private final static Set<Characteristics>	CONCURRENT_UNORDERED		= 
+		Collections.unmodifiableSet(EnumSet.of(Characteristics.CONCURRENT, Characteristics.UNORDERED));
+	
+	
 	private LocalCollectors()		{ }
 	
 	
-	private class TreeBinCounterCollector<T> implements Collector<T, TreeBinCounter<T>, TreeBinCounter<T>>
+	private static class TreeBinCounterCollector<T> implements Collector<T, TreeBinCounter<T>, TreeBinCounter<T>>
 	{
 		@Override
 		public Supplier<TreeBinCounter<T>> supplier() 
@@ -45,9 +61,10 @@ public class LocalCollectors
 			return (ctr, s) -> ctr.bumpCountForBin(s);
 		}
 
+		// Partial counters belong to the collection, so merging in place is safe.
 		@Override
 		public BinaryOperator<TreeBinCounter<T>> combiner() {
-			return (ctr1, ctr2) -> ctr1.combineWith(ctr2);
+			return (ctr1, ctr2) -> ctr1.mergeWith(ctr2);
 		}
 
 		@Override
@@ -59,124 +76,263 @@ public class LocalCollectors
 		@Override
 		public Set<Characteristics> characteristics() 
 		{
-			Set<Characteristics> set = new HashSet<>();
-			set.add(Characteristics.IDENTITY_FINISH);
-			set.add(Characteristics.UNORDERED);
-			return set;
+			return IDENTITY_UNORDERED;
 		}
-	}  // End of inner class TreeBinCounterCollector<T>
+	}  // End of static inner class TreeBinCounterCollector<T>
 	
 	
-	public static <T> TreeBinCounterCollector<T> toTreeBinCounter()
-	{
-		return new LocalCollectors().new TreeBinCounterCollector<T>();
-	}
+	private final static TreeBinCounterCollector<?>		TREE_BIN_COUNTER_COLLECTOR = new TreeBinCounterCollector<>();
 	
 	
-	private static<T> TreeSet<T> mergeSets(TreeSet<T> set1, TreeSet<T> set2)
+	@SuppressWarnings("unchecked")
+	public static <T> Collector<T, ?, TreeBinCounter<T>> toTreeBinCounter()
 	{
-		set1.addAll(set2);
-		return set1;
+		return (TreeBinCounterCollector<T>)TREE_BIN_COUNTER_COLLECTOR;
 	}
 	
 	
-	private class TreeSetCollector<T> implements Collector<T, TreeSet<T>, TreeSet<T>>
+	//
+	// For parallel streams. All threads bump 1 shared ConcurrentBinCounter, so there are no partial counters
+	// to merge, and the TreeBinCounter is built once at the end.
+	//
+	private static class ConcurrentTreeBinCounterCollector<T> implements Collector<T, ConcurrentBinCounter<T>, TreeBinCounter<T>>
 	{
 		@Override
-		public Supplier<TreeSet<T>> supplier() 
+		public Supplier<ConcurrentBinCounter<T>> supplier() 
 		{	
-			return () -> new TreeSet<T>();
+			return () -> new ConcurrentBinCounter<T>();
 		}
+		
 
 		@Override
-		public BiConsumer<TreeSet<T>, T> accumulator() 
+		public BiConsumer<ConcurrentBinCounter<T>, T> accumulator() 
 		{
-			return (set, s) -> set.add(s);
+			return (ctr, s) -> ctr.bumpCountForBin(s);
 		}
 
+		// Only called if the stream isn't both parallel and unordered, in which case there's 1 counter per chunk.
 		@Override
-		public BinaryOperator<TreeSet<T>> combiner() {
-			return (set1, set2) -> mergeSets(set1, set2);
+		public BinaryOperator<ConcurrentBinCounter<T>> combiner() {
+			return (ctr1, ctr2) -> 
+			{
+				for (T key: ctr2.keySet())
+					ctr1.bumpCountForBin(key, ctr2.getCountForBin(key));
+				return ctr1;
+			};
 		}
 
 		@Override
-		public Function<TreeSet<T>, TreeSet<T>> finisher() 
+		public Function<ConcurrentBinCounter<T>, TreeBinCounter<T>> finisher() 
 		{
-			return ctr -> ctr;
+			return ctr -> ctr.snapshot();
 		}
 
 		@Override
 		public Set<Characteristics> characteristics() 
 		{
-			Set<Characteristics> set = new HashSet<>();
-			set.add(Characteristics.IDENTITY_FINISH);
-			set.add(Characteristics.UNORDERED);
-			return set;
+			return CONCURRENT_UNORDERED;
 		}
-	}  // End of inner class TreeSetCollector<T>
-
+	}  // End of static inner class ConcurrentTreeBinCounterCollector<T>
 	
-	public static <T> TreeSetCollector<T> toTreeSet()
-	{
-		return new LocalCollectors().new TreeSetCollector<T>();
-	}
+	
+	private final static ConcurrentTreeBinCounterCollector<?>	CONCURRENT_TREE_BIN_COUNTER_COLLECTOR = 
+		new ConcurrentTreeBinCounterCollector<>();
 	
 	
-	private static<T> Stack<T> mergeStacks(Stack<T> s1, Stack<T> s2)
+	// Keys must be Comparable.
+	@SuppressWarnings("unchecked")
+	public static <T> Collector<T, ?, TreeBinCounter<T>> toTreeBinCounterConcurrent()
 	{
-		s1.addAll(s2);
-		return s1;
+		return (ConcurrentTreeBinCounterCollector<T>)CONCURRENT_TREE_BIN_COUNTER_COLLECTOR;
 	}
 	
 	
+	//
+	// Growable array for collecting elements before sorting them. Combining grows the larger buffer once, to 
+	// the combined size.
+	//
+	private static class ArrayBuffer
+	{
+		private final static int	DFLT_CAPACITY		= 16;
+		
+		Object[]					items = new Object[DFLT_CAPACITY];
+		int							size;
+		
+		void add(Object item)
+		{
+			if (size == items.length)
+				items = Arrays.copyOf(items, 2 * size);
+			items[size++] = item;
+		}
+		
+		ArrayBuffer addAll(ArrayBuffer that)
+		{
+			ArrayBuffer into = (this.size >= that.size)  ?  this  :  that;
+			ArrayBuffer from = (into == this)  ?  that  :  this;
+			if (into.items.length < into.size + from.size)
+				into.items = Arrays.copyOf(into.items, into.size + from.size);
+			System.arraycopy(from.items, 0, into.items, into.size, from.size);
+			into.size += from.size;
+			return into;
+		}
+	}  // End of static inner class ArrayBuffer
+	
 	
+	//
+	// Collects into an array and sorts it once at the end, rather than inserting into a tree 1 element at a time.
+	// Elements must be Comparable; duplicates (by compareTo) are dropped.
+	//
+	private static class SortedArraySetCollector<T> implements Collector<T, ArrayBuffer, SortedArraySet<T>>
+	{
+		@Override
+		public Supplier<ArrayBuffer> supplier() 
+		{	
+			return ArrayBuffer::new;
+		}
+
+		@Override
+		public BiConsumer<ArrayBuffer, T> accumulator() 
+		{
+			return (buf, s) -> buf.add(s);
+		}
 
+		@Override
+		public BinaryOperator<ArrayBuffer> combiner() {
+			return (buf1, buf2) -> buf1.addAll(buf2);
+		}
+
+		@Override
+		public Function<ArrayBuffer, SortedArraySet<T>> finisher() 
+		{
+			return buf -> SortedArraySet.sortAndWrap(buf.items, buf.size);
+		}
+
+		@Override
+		public Set<Characteristics> characteristics() 
+		{
+			return UNORDERED;
+		}
+	}  // End of static inner class SortedArraySetCollector<T>
+	
+	
+	private final static SortedArraySetCollector<?>		SORTED_ARRAY_SET_COLLECTOR = new SortedArraySetCollector<>();
+	
+	
+	@SuppressWarnings("unchecked")
+	public static <T> Collector<T, ?, SortedArraySet<T>> toSortedArraySet()
+	{
+		return (SortedArraySetCollector<T>)SORTED_ARRAY_SET_COLLECTOR;
+	}
+	
+	
+	// TreeSet's SortedSet constructor builds the tree from the sorted array in linear time.
+	public static <T> Collector<T, ?, TreeSet<T>> toTreeSet()
+	{
+		return Collectors.collectingAndThen(toSortedArraySet(), TreeSet::new);
+	}
 	
 	
-	private class StackCollector<T> implements Collector<T, Stack<T>, Stack<T>>
+	private static class ArrayDequeCollector<T> implements Collector<T, ArrayDeque<T>, ArrayDeque<T>>
 	{
 		@Override
-		public Supplier<Stack<T>> supplier() 
+		public Supplier<ArrayDeque<T>> supplier() 
 		{	
-			return () -> new Stack<T>();
+			return () -> new ArrayDeque<T>();
 		}
 		
 
 		@Override
-		public BiConsumer<Stack<T>, T> accumulator() 
+		public BiConsumer<ArrayDeque<T>, T> accumulator() 
 		{
-			return (stack, s) -> stack.push(s);
+			return (deque, s) -> deque.addLast(s);
 		}
 
 		@Override
-		public BinaryOperator<Stack<T>> combiner() {
-			return (stack1, stack2) -> mergeStacks(stack1, stack2);
+		public BinaryOperator<ArrayDeque<T>> combiner() {
+			return (deque1, deque2) -> 
+			{
+				deque1.addAll(deque2);
+				return deque1;
+			};
 		}
 
 		@Override
-		public Function<Stack<T>, Stack<T>> finisher() 
+		public Function<ArrayDeque<T>, ArrayDeque<T>> finisher() 
 		{
-			return st -> st;
+			return deque -> deque;
 		}
 
 		@Override
 		public Set<Characteristics> characteristics() 
 		{
-			Set<Characteristics> set = new HashSet<>();
-			set.add(Characteristics.IDENTITY_FINISH);
-			return set;
+			return IDENTITY;
 		}
-	}  // End of inner class TreeSetCollector<T>
-
+	}  // End of static inner class ArrayDequeCollector<T>
+	
+	
+	private final static ArrayDequeCollector<?>		ARRAY_DEQUE_COLLECTOR = new ArrayDequeCollector<>();
+	
 	
-	public static <T> StackCollector<T> toStack()
+	// In encounter order, first to last. Use as a stack with push()/pop(), which work at the first end, or 
+	// with addLast()/pollLast() to pop in reverse encounter order like a Stack.
+	@SuppressWarnings("unchecked")
+	public static <T> Collector<T, ?, ArrayDeque<T>> toArrayDeque()
 	{
-		return new LocalCollectors().new StackCollector<T>();
+		return (ArrayDequeCollector<T>)ARRAY_DEQUE_COLLECTOR;
 	}
 	
 	
+	//
+	// Accumulates into an ArrayList, which takes nulls as Stack does, and fills the Stack once at the end, 
+	// presized, rather than synchronizing on each push. Combining keeps encounter order.
+	//
+	private static class StackCollector<T> implements Collector<T, ArrayList<T>, Stack<T>>
+	{
+		@Override
+		public Supplier<ArrayList<T>> supplier() 
+		{	
+			return ArrayList::new;
+		}
+
+		@Override
+		public BiConsumer<ArrayList<T>, T> accumulator() 
+		{
+			return (list, t) -> list.add(t);
+		}
+
+		@Override
+		public BinaryOperator<ArrayList<T>> combiner() {
+			return (list1, list2) -> { list1.addAll(list2); return list1; };
+		}
+
+		@Override
+		public Function<ArrayList<T>, Stack<T>> finisher() 
+		{
+			return list ->
+			{
+				Stack<T> stack = new Stack<T>();
+				stack.addAll(list);
+				return stack;
+			};
+		}
+
+		@Override
+		public Set<Characteristics> characteristics() 
+		{
+			return NONE;
+		}
+	}  // End of static inner class StackCollector<T>
 	
 	
+	private final static StackCollector<?>			STACK_COLLECTOR = new StackCollector<>();
+	
+	
+	// Bottom to top in encounter order, as if each element had been pushed. Nulls are kept.
+	@SuppressWarnings("unchecked")
+	public static <T> Collector<T, ?, Stack<T>> toStack()
+	{
+		return (StackCollector<T>)STACK_COLLECTOR;
+	}
 	
 	
 	static void sop(Object x)	{ System.out.println(x); }
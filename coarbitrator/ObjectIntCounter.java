@@ -0,0 +1,258 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ObjectIntCounter.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+
+
+//
+// Bin counter with open addressing: keys and counts live in parallel arrays, so bumping an existing bin 
+// allocates nothing, and there's no node or int[] box per bin as in HashBinCounter. Same API as 
+// HashBinCounter. Null keys aren't allowed. Bins can't be removed, except by clear().
+//
+
+
+public class ObjectIntCounter<K> implements java.io.Serializable
+{
+	private static final long serialVersionUID = 7150228370934409262L;
+	private final static int		DFLT_CAPACITY		= 16;		// power of 2
+	
+	private Object[]				keys;
+	private int[]					counts;
+	private int						nBins;
+	
+	
+	public ObjectIntCounter()
+	{
+		this(DFLT_CAPACITY);
+	}
+	
+	
+	// Room for expectedBins bins without rehashing.
+	public ObjectIntCounter(int expectedBins)
+	{
+		int capacity = DFLT_CAPACITY;
+		while (capacity < 2 * expectedBins)
+			capacity <<= 1;
+		keys = new Object[capacity];
+		counts = new int[capacity];
+	}
+
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int slot=0; slot<keys.length; slot++)
+			if (keys[slot] != null)
+				sb.append("\n  ").append(keys[slot]).append(": ").append(counts[slot]);
+		sb.append('\n').append(nBins).append(" bins");
+		return sb.toString();
+	}
+	
+	
+	// Slot holding key, or the empty slot where it would go. Linear probing; load factor <= 1/2.
+	private int findSlot(Object key)
+	{
+		int mask = keys.length - 1;
+		int h = key.hashCode() * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] != null  &&  !keys[slot].equals(key))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+	
+	
+	private void rehash()
+	{
+		Object[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new Object[2 * oldKeys.length];
+		counts = new int[2 * oldKeys.length];
+		for (int i=0; i<oldKeys.length; i++)
+		{
+			if (oldKeys[i] != null)
+			{
+				int slot = findSlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+	
+	
+	public void bumpCountForBin(K bin)
+	{
+		bumpCountForBin(bin, 1);
+	}
+	
+	
+	public void bumpCountForBin(K bin, int delta)
+	{
+		int slot = findSlot(Objects.requireNonNull(bin));
+		if (keys[slot] == null)
+		{
+			if (2 * (nBins + 1) > keys.length)
+			{
+				rehash();
+				slot = findSlot(bin);
+			}
+			keys[slot] = bin;
+			nBins++;
+		}
+		counts[slot] += delta;
+	}
+	
+	
+	// -1 if bin doesn't exist.
+	public int getCountForBin(K bin)
+	{
+		int slot = findSlot(bin);
+		return (keys[slot] != null)  ?  counts[slot]  :  -1;
+	}
+	
+	
+	public int getCountForBinZeroDefault(K bin)
+	{
+		return counts[findSlot(bin)];
+	}
+	
+	
+	public boolean containsKey(K bin)
+	{
+		return keys[findSlot(bin)] != null;
+	}
+	
+	
+	// Number of bins, not sum of counts.
+	public int size()
+	{
+		return nBins;
+	}
+	
+	
+	public boolean isEmpty()
+	{
+		return nBins == 0;
+	}
+	
+	
+	public void clear()
+	{
+		Arrays.fill(keys, null);
+		Arrays.fill(counts, 0);
+		nBins = 0;
+	}
+	
+	
+	// A copy, in no particular order.
+	@SuppressWarnings("unchecked")
+	public List<K> keyList()
+	{
+		List<K> ret = new ArrayList<>(nBins);
+		for (Object key: keys)
+			if (key != null)
+				ret.add((K)key);
+		return ret;
+	}
+	
+	
+	public long getSumOfAllCounts()
+	{
+		long sum = 0;
+		for (int count: counts)
+			sum += count;
+		return sum;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	public void add(ObjectIntCounter<K> that)
+	{
+		for (int i=0; i<that.keys.length; i++)
+			if (that.keys[i] != null)
+				this.bumpCountForBin((K)that.keys[i], that.counts[i]);
+	}
+	
+	
+	// Arbitrary if there's a tie.
+	@SuppressWarnings("unchecked")
+	public K getKeyWithMaxPopulation()
+	{
+		int winnerSlot = -1;
+		for (int slot=0; slot<keys.length; slot++)
+			if (keys[slot] != null  &&  (winnerSlot < 0  ||  counts[slot] > counts[winnerSlot]))
+				winnerSlot = slot;
+		return (winnerSlot < 0)  ?  null  :  (K)keys[winnerSlot];
+	}
+	
+	
+	// Ascending by count; ties in no particular order.
+	public List<K> keysByPopulationAscending()
+	{
+		int[] slots = occupiedSlots();
+		return bySlot(slots, PopulationOrder.ascending(countsBySlot(slots), nBins));
+	}
+	
+	
+	// Exact reverse of keysByPopulationAscending().
+	public List<K> keysByPopulationDescending()
+	{
+		int[] slots = occupiedSlots();
+		return bySlot(slots, PopulationOrder.descending(countsBySlot(slots), nBins));
+	}
+	
+	
+	// The first k of keysByPopulationDescending(), without sorting all the bins.
+	public List<K> topK(int k)
+	{
+		int[] slots = occupiedSlots();
+		return bySlot(slots, PopulationOrder.topK(countsBySlot(slots), nBins, k));
+	}
+	
+	
+	private int[] occupiedSlots()
+	{
+		int[] slots = new int[nBins];
+		int n = 0;
+		for (int slot=0; slot<keys.length; slot++)
+			if (keys[slot] != null)
+				slots[n++] = slot;
+		return slots;
+	}
+	
+	
+	private long[] countsBySlot(int[] slots)
+	{
+		long[] ret = new long[slots.length];
+		for (int i=0; i<slots.length; i++)
+			ret[i] = counts[slots[i]];
+		return ret;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private List<K> bySlot(int[] slots, int[] indices)
+	{
+		List<K> ret = new ArrayList<K>(indices.length);
+		for (int index: indices)
+			ret.add((K)keys[slots[index]]);
+		return ret;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    PopulationOrder.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+
+
+//
+// Orders bins by population without boxing. Callers pass counts in their own key order (e.g. TreeBinCounter's
+// key order) and get back indices into that order. Ascending order is stable, so ties keep key order; 
+// descending order is the exact reverse of ascending, so ties come out in reverse key order. topK() agrees 
+// with the first k of the descending order.
+//
+// When the counts span a small range, which is typical (most bins hold a few hits), ascending order is 
+// a counting sort. Otherwise count and index are packed into 1 long and sorted as primitives.
+//
+
+
+class PopulationOrder
+{
+	// Counting sort is used when the count range is no more than this many times the number of bins, plus a 
+	// constant so that small counters always qualify.
+	private final static int		MAX_RANGE_PER_BIN			= 4;
+	private final static int		MAX_RANGE_SLACK				= 1024;
+	
+	
+	private PopulationOrder()		{ }
+	
+	
+	static int[] ascending(long[] counts, int n)
+	{
+		if (n == 0)
+			return new int[0];
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int i=0; i<n; i++)
+		{
+			min = Math.min(min, counts[i]);
+			max = Math.max(max, counts[i]);
+		}
+		long range = max - min;
+		if (range >= 0  &&  range < Integer.MAX_VALUE  &&  range <= (long)MAX_RANGE_PER_BIN * n + MAX_RANGE_SLACK)
+			return countingSort(counts, n, min, (int)range + 1);
+		else if (min >= 0  &&  max <= Integer.MAX_VALUE)
+			return packedSort(counts, n);
+		else
+			return boxedSort(counts, n);
+	}
+	
+	
+	static int[] descending(long[] counts, int n)
+	{
+		int[] ret = ascending(counts, n);
+		for (int i=0, j=n-1; i<j; i++, j--)
+		{
+			int swap = ret[i];
+			ret[i] = ret[j];
+			ret[j] = swap;
+		}
+		return ret;
+	}
+	
+	
+	// Indices of the k most populous bins, most populous first. A min-heap of size k holds the best so far, 
+	// so this is O(n log k) with no allocation beyond the heap.
+	static int[] topK(long[] counts, int n, int k)
+	{
+		k = Math.min(Math.max(k, 0), n);
+		if (k == 0)
+			return new int[0];
+		int[] heap = new int[k];
+		int heapSize = 0;
+		for (int i=0; i<n; i++)
+		{
+			if (heapSize < k)
+			{
+				heap[heapSize] = i;
+				siftUp(heap, heapSize++, counts);
+			}
+			else if (beats(i, heap[0], counts))
+			{
+				heap[0] = i;
+				siftDown(heap, heapSize, counts);
+			}
+		}
+		
+		// Drain the heap. The least of the top k comes out first, so fill from the back.
+		int[] ret = new int[k];
+		for (int i=k-1; i>=0; i--)
+		{
+			ret[i] = heap[0];
+			heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize, counts);
+		}
+		return ret;
+	}
+	
+	
+	// Stable, so ties keep index order.
+	private static int[] countingSort(long[] counts, int n, long min, int nBuckets)
+	{
+		int[] starts = new int[nBuckets + 1];
+		for (int i=0; i<n; i++)
+			starts[(int)(counts[i] - min) + 1]++;
+		for (int b=1; b<=nBuckets; b++)
+			starts[b] += starts[b-1];
+		int[] ret = new int[n];
+		for (int i=0; i<n; i++)
+			ret[starts[(int)(counts[i] - min)]++] = i;
+		return ret;
+	}
+	
+	
+	// Count in the high 32 bits, index in the low 32, so ties sort by index.
+	private static int[] packedSort(long[] counts, int n)
+	{
+		long[] packed = new long[n];
+		for (int i=0; i<n; i++)
+			packed[i] = (counts[i] << 32) | i;
+		Arrays.sort(packed);
+		int[] ret = new int[n];
+		for (int i=0; i<n; i++)
+			ret[i] = (int)packed[i];
+		return ret;
+	}
+	
+	
+	// Only for counts that don't fit in 31 bits. Arrays.sort on objects is stable.
+	private static int[] boxedSort(long[] counts, int n)
+	{
+		Integer[] indices = new Integer[n];
+		for (int i=0; i<n; i++)
+			indices[i] = i;
+		Arrays.sort(indices, (i1, i2) -> Long.compare(counts[i1], counts[i2]));
+		int[] ret = new int[n];
+		for (int i=0; i<n; i++)
+			ret[i] = indices[i];
+		return ret;
+	}
+	
+	
+	// True if bin i ranks above bin j in descending order: higher count, or same count and later index.
+	private static boolean beats(int i, int j, long[] counts)
+	{
+		return counts[i] > counts[j]  ||  (counts[i] == counts[j]  &&  i > j);
+	}
+	
+	
+	private static void siftUp(int[] heap, int pos, long[] counts)
+	{
+		int moving = heap[pos];
+		while (pos > 0)
+		{
+			int parent = (pos - 1) >>> 1;
+			if (!beats(heap[parent], moving, counts))
+				break;
+			heap[pos] = heap[parent];
+			pos = parent;
+		}
+		heap[pos] = moving;
+	}
+	
+	
+	private static void siftDown(int[] heap, int heapSize, long[] counts)
+	{
+		if (heapSize == 0)
+			return;
+		int pos = 0;
+		int moving = heap[0];
+		while (true)
+		{
+			int child = 2*pos + 1;
+			if (child >= heapSize)
+				break;
+			if (child+1 < heapSize  &&  beats(heap[child], heap[child+1], counts))
+				child++;
+			if (!beats(moving, heap[child], counts))
+				break;
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		heap[pos] = moving;
+	}
+}
@@ -21,37 +21,35 @@ package coarbitrator;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.*;
 
 
 public class ProcessPhase1Results 
 {
 	private final static double		QUALITY_THRESHOLD	= 5;
-	private final static File		PHASE_1_BLOUTF		= new File("blastp_out.csv");
+	private final static File		PHASE_1_BLOUTF		= CompressedInputs.resolve(new File("blastp_out.csv"));
 	private final static File  		PHASE_2_QUERY_FASTA = new File("phase_2_query.faa");
 	
 	
 	private static Collection<String> collectProtAccs()
 	{
-		Set<String> protAccs = new HashSet<>();
+		Set<String> protAccs = null;
 		
 		try
 		(
-				FileReader fr = new FileReader(PHASE_1_BLOUTF);
-				BufferedReader br = new BufferedReader(fr);
-				TabularBlastReader tbr = new TabularBlastReader(br);
+				Stream<TabularBlastHit> hits = TabularBlastReader.stream(PHASE_1_BLOUTF);
 		)
 		{
-			TabularBlastHit hit;
-			while ((hit = tbr.readBlastHit()) != null)
-			{
-				if (hit.e <= QUALITY_THRESHOLD)
-					protAccs.add(hit.subject);
-			}
+			protAccs = hits
+				.parallel()
+				.filter(hit -> hit.e <= QUALITY_THRESHOLD)
+				.map(hit -> hit.subject)
+				.collect(Collectors.toSet());
 		}
-		catch (IOException x)
+		catch (UncheckedIOException x)
 		{
 			sop("Trouble reading blastn output file " + PHASE_1_BLOUTF.getAbsolutePath() + ":");
-			sop(x.getMessage());
+			sop(x.getCause().getMessage());
 			System.exit(10);
 		}
 		return protAccs;
@@ -20,6 +20,7 @@
 package coarbitrator;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 import java.io.*;
 
@@ -34,30 +35,197 @@ import java.io.*;
 public class ProcessPhase2Results 
 {
 	private final static double			SUPERIORITY_THRESHOLD		= 0.9;
+	private final static int			QUERY_BLOCK_SIZE			= 4096;
+	private final static long			FOLLOW_POLL_MILLIS			= 2000;
+	private final static long			FOLLOW_IDLE_TIMEOUT_MILLIS	= 60 * 60 * 1000;
+	private final static long			REFERENCE_RELOAD_MILLIS		= 60 * 1000;
+	private final static int			MEMO_CAPACITY				= 100000;
 	private final static File			DFLT_RPS_BLAST_OUT_CSV		= new File("data/rpsblast_out.csv");
 	private final static File			BACKUP_RPS_BLAST_OUT_CSV	= new File("rpsblast_out.csv");
 	private final static File			DFLT_FINAL_OUTPUT_CSV		= new File("data/coarbitrator_out.csv");
 	private final static File			BACKUP_FINAL_OUTPUT_CSV		= new File("coarbitrator_out.csv");
+	private final static File			DFLT_TRACE_JSONL			= new File("data/coarbitrator_trace.jsonl");
+	private final static File			BACKUP_TRACE_JSONL			= new File("coarbitrator_trace.jsonl");
 	
 	
-	private static void collectAcceptedQueries(File rpsoutf, Collection<String> acceptedQueries) throws IOException
+	// If unsorted, hits for a query needn't be contiguous in rpsoutf (e.g. concatenated shard outputs). Cache
+	// may be null. If traceWriter isn't null, each query's decision trace is written to it as 1 line of JSON.
+	private static void collectAcceptedQueries(File rpsoutf, boolean unsorted, Collection<String> acceptedQueries,
+		ClassificationCache cache, Writer traceWriter) throws IOException
 	{
 		try
 		(
-			FileReader fr = new FileReader(rpsoutf);
-			BufferedReader br = new BufferedReader(fr);
-			ReversibleBufferedReader rbr = new ReversibleBufferedReader(br);
-			ConserverDomainReportReader cdrr = new ConserverDomainReportReader(rbr);
+			ConserverDomainReportReader cdrr = unsorted  ?  
+				ConserverDomainReportReader.forUnsortedFile(rpsoutf)  :  
+				new ConserverDomainReportReader(rpsoutf);
 		)
 		{
-			ConservedDomainReport report;
-			while ((report = cdrr.readReport()) != null)
+			CompactConservedDomainReport report = new CompactConservedDomainReport();
+			if (traceWriter != null)
+				report.setTrace(new ClassificationTrace());
+			while (cdrr.readReport(report))
 			{
-				report.classifyForSuperiorityThreshold(SUPERIORITY_THRESHOLD);
+				if (cache != null)
+					report.classifyForSuperiorityThreshold(SUPERIORITY_THRESHOLD, cache);
+				else
+					report.classifyForSuperiorityThreshold(SUPERIORITY_THRESHOLD);
 				if (report.isCOI())
 					acceptedQueries.add(report.getQuery());
+				if (traceWriter != null)
+					traceWriter.write(report.getTrace().toJson() + "\n");
+			}
+		}
+	}
+	
+	
+	//
+	// Reads blocks of reports on this thread and classifies each block on a work-stealing pool while the next
+	// block is read. Blocks are joined in input order, and classifying a block preserves order within it, so
+	// acceptedQueries gets the same queries in the same order as collectAcceptedQueries(). Cache may be null; 
+	// if not, it's shared by all the pool's threads. Outcome shapes are tallied in outcomeCounts, which may be 
+	// null.
+	//
+	private static void collectAcceptedQueriesParallel(File rpsoutf, boolean unsorted, Collection<String> acceptedQueries,
+		int nThreads, ClassificationCache cache, ConcurrentBinCounter<ClassificationOutcome.Shape> outcomeCounts) 
+		throws IOException
+	{
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try
+		(
+			ConserverDomainReportReader cdrr = unsorted  ?  
+				ConserverDomainReportReader.forUnsortedFile(rpsoutf)  :  
+				new ConserverDomainReportReader(rpsoutf);
+		)
+		{
+			// At most 2 blocks are in flight, so 2 sets of reports can be refilled alternately.
+			CompactConservedDomainReport[][] reportSets = new CompactConservedDomainReport[2][QUERY_BLOCK_SIZE];
+			for (CompactConservedDomainReport[] reports: reportSets)
+				for (int i=0; i<reports.length; i++)
+					reports[i] = new CompactConservedDomainReport();
+			ForkJoinTask<List<String>> pending = null;
+			int nBlocks = 0;
+			int blockSize;
+			while ((blockSize = readBlock(cdrr, reportSets[nBlocks % 2])) > 0)
+			{
+				CompactConservedDomainReport[] block = reportSets[nBlocks++ % 2];
+				int n = blockSize;
+				ForkJoinTask<List<String>> task = pool.submit(() -> classifyBlock(block, n, cache, outcomeCounts));
+				if (pending != null)
+					acceptedQueries.addAll(pending.join());
+				pending = task;
+			}
+			if (pending != null)
+				acceptedQueries.addAll(pending.join());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+	
+	
+	// Returns number of reports read.
+	private static int readBlock(ConserverDomainReportReader cdrr, CompactConservedDomainReport[] block) throws IOException
+	{
+		int n = 0;
+		while (n < block.length  &&  cdrr.readReport(block[n]))
+			n++;
+		return n;
+	}
+	
+	
+	// When called from a ForkJoinPool task, the parallel stream runs in that pool.
+	private static List<String> classifyBlock(CompactConservedDomainReport[] block, int n, ClassificationCache cache,
+		ConcurrentBinCounter<ClassificationOutcome.Shape> outcomeCounts)
+	{
+		return Arrays.stream(block, 0, n)
+			.parallel()
+			.map(report -> classify(report, cache, outcomeCounts))
+			.filter(CompactConservedDomainReport::isCOI)
+			.map(CompactConservedDomainReport::getQuery)
+			.collect(Collectors.toList());
+	}
+	
+	
+	// Classifies the report and tallies its outcome shape.
+	private static CompactConservedDomainReport classify(CompactConservedDomainReport report, ClassificationCache cache,
+		ConcurrentBinCounter<ClassificationOutcome.Shape> outcomeCounts)
+	{
+		if (cache != null)
+			report.classifyForSuperiorityThreshold(SUPERIORITY_THRESHOLD, cache);
+		else
+			report.classifyForSuperiorityThreshold(SUPERIORITY_THRESHOLD);
+		if (outcomeCounts != null)
+			outcomeCounts.bumpCountForBin(report.getOutcomeShape());
+		return report;
+	}
+	
+	
+	//
+	// Classifies while rpsblast is still writing rpsoutf, so classification overlaps the rpsblast run. A query's
+	// report is complete once the next query's 1st hit appears, or once the input ends. Input ends when
+	// rpsoutf.done exists (touch it when rpsblast finishes), or when rpsoutf hasn't grown for an hour. Accepted
+	// queries are written to outf as they are found. Since this can run for a long time, edits to cds.csv or
+	// cdd.versions are picked up as it goes. The output has no room for a version column, so each version of 
+	// the reference tables is logged with the output line where its results start.
+	//
+	private static int followAndWriteAcceptedQueries(File rpsoutf, File outf) throws IOException
+	{
+		File doneMarker = new File(rpsoutf.getPath() + ".done");
+		int nAccepted = 0;
+		ReferenceDataHolder referenceData = ConservedDomainReport.getReferenceDataHolder();
+		referenceData.startAutoReload(REFERENCE_RELOAD_MILLIS);
+		try
+		(
+			FollowingFileInputStream ffis = 
+				new FollowingFileInputStream(rpsoutf, doneMarker, FOLLOW_POLL_MILLIS, FOLLOW_IDLE_TIMEOUT_MILLIS);
+			ByteLineSource lines = new ByteLineSource(ffis);
+			ConserverDomainReportReader cdrr = new ConserverDomainReportReader(lines);
+			FileWriter fw = new FileWriter(outf);
+		)
+		{
+			fw.write("Protein accession #, Coded by nucleotide accession #\n");
+			fw.flush();
+			CompactConservedDomainReport report = new CompactConservedDomainReport();
+			long version = 0;
+			while (cdrr.readReport(report))
+			{
+				if (report.getReferenceVersion() != version)
+				{
+					// Line 1 is the header.
+					version = report.getReferenceVersion();
+					sop("Reference tables version " + version + " (source hash " + 
+						report.getReferenceData().getSourceHash() + ") from output line " + (nAccepted + 2));
+				}
+				report.classifyForSuperiorityThreshold(SUPERIORITY_THRESHOLD);
+				if (report.isCOI())
+				{
+					fw.write(report.getQuery().replace("_", ",") + "\n");
+					fw.flush();
+					nAccepted++;
+				}
 			}
 		}
+		finally
+		{
+			referenceData.stopAutoReload();
+		}
+		return nAccepted;
+	}
+	
+	
+	// Query format is e.g. ARO47330.1_KY263006, where 1st part is protein acc and 2nd part is nuc acc.
+	static void writeAcceptedQueries(File f, Collection<String> acceptedQueries) throws IOException
+	{
+		try
+		(
+				FileWriter fw = new FileWriter(f);
+		)
+		{
+			fw.write("Protein accession #, Coded by nucleotide accession #\n");
+			for (String query: acceptedQueries)
+				fw.write(query.replace("_", ",") + "\n");
+		}
 	}
 	
 	
@@ -68,32 +236,102 @@ public class ProcessPhase2Results
 	
 	
 
+	// Pass -unsorted if hits for a query might not be contiguous in the rpsblast output. Pass -parallel to 
+	// classify on all cores. Pass -follow, alone, to classify while rpsblast is still running (see 
+	// followAndWriteAcceptedQueries()). Pass -memo to reuse outcomes for repeated hit signatures and report 
+	// the cache hit rate. Pass -trace to write every query's decision trace, as JSON lines, to 
+	// coarbitrator_trace.jsonl.
 	public static void main(String[] args)
 	{
+		boolean unsorted = Arrays.asList(args).contains("-unsorted");
+		boolean parallel = Arrays.asList(args).contains("-parallel");
+		boolean follow = Arrays.asList(args).contains("-follow");
+		boolean memo = Arrays.asList(args).contains("-memo");
+		boolean trace = Arrays.asList(args).contains("-trace");
+		if (follow  &&  (unsorted  ||  parallel  ||  memo  ||  trace))
+		{
+			// Following needs each query's hits to be contiguous: it can't sort input that's still being written.
+			sop("Usage error: -follow can't be combined with -unsorted, -parallel, -memo, or -trace");
+			System.exit(1);
+		}
+		if (trace  &&  parallel)
+		{
+			sop("Usage error: -trace can't be combined with -parallel; traces are only written by the sequential path");
+			System.exit(1);
+		}
+		ClassificationCache cache = memo  ?  new ClassificationCache(MEMO_CAPACITY)  :  null;
 		List<String> acceptedQueries = new ArrayList<>();
-		File bloutf = DFLT_RPS_BLAST_OUT_CSV.exists()  ?  DFLT_RPS_BLAST_OUT_CSV  :  BACKUP_RPS_BLAST_OUT_CSV;
-		if (bloutf == DFLT_RPS_BLAST_OUT_CSV)
+		File dfltBloutf = CompressedInputs.resolve(DFLT_RPS_BLAST_OUT_CSV);
+		File bloutf = dfltBloutf.exists()  ?  dfltBloutf  :  CompressedInputs.resolve(BACKUP_RPS_BLAST_OUT_CSV);
+		if (bloutf == dfltBloutf)
 			sop("START");
+		if (follow)
+		{
+			// The rpsblast output might not exist yet, so use the data directory if it does.
+			boolean useDataDir = DFLT_RPS_BLAST_OUT_CSV.getParentFile().isDirectory();
+			File followf = useDataDir  ?  DFLT_RPS_BLAST_OUT_CSV  :  BACKUP_RPS_BLAST_OUT_CSV;
+			File outf = useDataDir  ?  DFLT_FINAL_OUTPUT_CSV  :  BACKUP_FINAL_OUTPUT_CSV;
+			sop("Following " + followf.getAbsolutePath());
+			try
+			{
+				int nAccepted = followAndWriteAcceptedQueries(followf, outf);
+				sop(nAccepted + " accepted");
+			}
+			catch (IOException x)
+			{
+				sop("Trouble following rpsblast output file " + followf.getAbsolutePath() + ": " + x.getMessage());
+				System.exit(1);
+			}
+			catch (UncheckedIOException x)
+			{
+				sop(x.getMessage() + ": " + x.getCause().getMessage());
+				System.exit(1);
+			}
+			sop("DONE");
+			return;
+		}
 		try
 		{
 			// Query format is e.g. ARO47330.1_KY263006, where 1st part is protein acc and 2nd part is nuc acc.
-			collectAcceptedQueries(bloutf, acceptedQueries);
+			if (parallel)
+			{
+				ConcurrentBinCounter<ClassificationOutcome.Shape> outcomeCounts = new ConcurrentBinCounter<>();
+				collectAcceptedQueriesParallel(bloutf, unsorted, acceptedQueries, Runtime.getRuntime().availableProcessors(), 
+					cache, outcomeCounts);
+				sop("Outcomes:" + outcomeCounts.snapshot());
+			}
+			else if (trace)
+			{
+				File tracef = dfltBloutf.exists()  ?  DFLT_TRACE_JSONL  :  BACKUP_TRACE_JSONL;
+				try
+				(
+					FileWriter fw = new FileWriter(tracef);
+					BufferedWriter bw = new BufferedWriter(fw);
+				)
+				{
+					collectAcceptedQueries(bloutf, unsorted, acceptedQueries, cache, bw);
+				}
+			}
+			else
+				collectAcceptedQueries(bloutf, unsorted, acceptedQueries, cache, null);
+			if (cache != null)
+				sop("Classification cache: " + cache);
 		}
 		catch (IOException x)
 		{
 			sop("Trouble reading rpsblast output file " + bloutf.getAbsolutePath());
 		}
-		File finalOutf = DFLT_RPS_BLAST_OUT_CSV.exists()  ?  DFLT_FINAL_OUTPUT_CSV  :  BACKUP_FINAL_OUTPUT_CSV;
+		catch (UncheckedIOException x)
+		{
+			sop(x.getMessage() + ": " + x.getCause().getMessage());
+			System.exit(1);
+		}
+		File finalOutf = dfltBloutf.exists()  ?  DFLT_FINAL_OUTPUT_CSV  :  BACKUP_FINAL_OUTPUT_CSV;
 		if (finalOutf == DFLT_FINAL_OUTPUT_CSV)
 			sop("Writing final output csv");
 		try
-		(
-				FileWriter fw = new FileWriter(finalOutf);
-		)
 		{
-			fw.write("Protein accession #, Coded by nucleotide accession #\n");
-			for (String query: acceptedQueries)
-				fw.write(query.replace("_", ",") + "\n");
+			writeAcceptedQueries(finalOutf, acceptedQueries);
 		}
 		catch (IOException x)
 		{
@@ -0,0 +1,207 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    PssmCOInessTable.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Precompiled COIness lookup. Numeric pssm ids (the subjects of local rpsblast hits) index a dense byte 
+// array, so a lookup is one array load. Other keys, i.e. accessions such as cd01663 from cds.csv, go in a 
+// small map. Immutable once compiled.
+//
+// Unclassified cds are NEGATIVE, and "cl" (superfamily cluster) accessions are UNINFORMATIVE.
+//
+
+
+public class PssmCOInessTable 
+{
+	private final static int							MAX_DENSE_ID	= 1 << 24;		// bigger ids go in the map
+	private final static File							DFLT_CD_FILE	= new File("data/cds.csv");
+	private final static File							BACKUP_CD_FILE	= new File("cds.csv");
+	private final static ConservedDomainCOIness[]		BY_CODE;						// code = ordinal + 1; 0 = unclassified
+	
+	static
+	{
+		ConservedDomainCOIness[] values = ConservedDomainCOIness.values();
+		BY_CODE = new ConservedDomainCOIness[values.length + 1];
+		BY_CODE[0] = ConservedDomainCOIness.NEGATIVE;
+		for (ConservedDomainCOIness ness: values)
+			BY_CODE[ness.ordinal() + 1] = ness;
+	}
+	
+	private final byte[]									codeByPssmId;
+	private final Map<String, ConservedDomainCOIness>		byOtherKey;
+	
+	
+	private PssmCOInessTable(byte[] codeByPssmId, Map<String, ConservedDomainCOIness> byOtherKey)
+	{
+		this.codeByPssmId = codeByPssmId;
+		this.byOtherKey = byOtherKey;
+	}
+	
+	
+	// cds.csv in data/ if it's there, otherwise in the current directory. Doesn't load anything.
+	static File getDefaultFile()
+	{
+		return DFLT_CD_FILE.exists()  ?  DFLT_CD_FILE  :  BACKUP_CD_FILE;
+	}
+	
+	
+	// Reads cds.csv: 1 "accession,COIness" line per classified cd.
+	static Map<String, ConservedDomainCOIness> readAccToCOIness(File f) throws IOException
+	{
+		Map<String, ConservedDomainCOIness> accToCOIness = new HashMap<>();
+		try
+		(
+			FileReader fr = new FileReader(f);
+			BufferedReader br = new BufferedReader(fr);
+		)
+		{
+			String line;
+			while ((line = br.readLine()) != null)
+			{
+				if (line.trim().isEmpty())
+					continue;
+				String[] pieces = line.split(",");
+				assert pieces.length == 2  :  line;
+				accToCOIness.put(pieces[0].trim(), ConservedDomainCOIness.valueOf(pieces[1].trim()));
+			}
+		}
+		return accToCOIness;
+	}
+	
+	
+	//
+	// accToCOIness is the contents of cds.csv. Its keys are usually accessions, but can also be pssm ids. A pssm 
+	// id whose accession is in accToCOIness gets that accession's COIness, overriding any entry for the pssm id 
+	// itself.
+	//
+	public static PssmCOInessTable compile(Map<String, ConservedDomainCOIness> accToCOIness, CdPssmidToAccAndShortName pssmMap)
+	{
+		Map<String, ConservedDomainCOIness> idToCOIness = new HashMap<>(accToCOIness);
+		for (int pssm: pssmMap.getPssmIds())
+		{
+			ConservedDomainCOIness ness = accToCOIness.get(pssmMap.getAccession(pssm));
+			if (ness != null)
+				idToCOIness.put(Integer.toString(pssm), ness);
+		}
+		
+		int maxId = -1;
+		for (String key: idToCOIness.keySet())
+		{
+			int id = parseCanonicalId(key);
+			if (id <= MAX_DENSE_ID)
+				maxId = Math.max(maxId, id);
+		}
+		byte[] codes = new byte[maxId + 1];
+		Map<String, ConservedDomainCOIness> byOtherKey = new HashMap<>();
+		for (Map.Entry<String, ConservedDomainCOIness> entry: idToCOIness.entrySet())
+		{
+			int id = parseCanonicalId(entry.getKey());
+			if (id >= 0  &&  id <= MAX_DENSE_ID)
+				codes[id] = (byte)(entry.getValue().ordinal() + 1);
+			else
+				byOtherKey.put(entry.getKey(), entry.getValue());
+		}
+		return new PssmCOInessTable(codes, byOtherKey);
+	}
+	
+	
+	// For tables that were compiled earlier and saved, e.g. by ReferenceSnapshot. Codes are as returned by
+	// getCodes(). Doesn't copy.
+	static PssmCOInessTable fromCodes(byte[] codeByPssmId, Map<String, ConservedDomainCOIness> byOtherKey)
+	{
+		return new PssmCOInessTable(codeByPssmId, byOtherKey);
+	}
+	
+	
+	// -1 unless s is a decimal int with no sign or leading zeros, i.e. the form Integer.toString() produces.
+	static int parseCanonicalId(CharSequence s)
+	{
+		return parseCanonicalId(s, 0, s.length());
+	}
+	
+	
+	static int parseCanonicalId(CharSequence s, int start, int end)
+	{
+		int len = end - start;
+		if (len <= 0  ||  len > 9  ||  (len > 1  &&  s.charAt(start) == '0'))
+			return -1;
+		int id = 0;
+		for (int i=start; i<end; i++)
+		{
+			char ch = s.charAt(i);
+			if (ch < '0'  ||  ch > '9')
+				return -1;
+			id = 10*id + (ch - '0');
+		}
+		return id;
+	}
+	
+	
+	public ConservedDomainCOIness get(int pssmId)
+	{
+		if (pssmId >= 0  &&  pssmId < codeByPssmId.length)
+			return BY_CODE[codeByPssmId[pssmId]];
+		else if (pssmId > MAX_DENSE_ID)
+			return byOtherKey.getOrDefault(Integer.toString(pssmId), ConservedDomainCOIness.NEGATIVE);
+		else
+			return ConservedDomainCOIness.NEGATIVE;
+	}
+	
+	
+	public ConservedDomainCOIness get(String cd)
+	{
+		if (cd.regionMatches(true, 0, "cl", 0, 2))
+			return ConservedDomainCOIness.UNINFORMATIVE;
+		int id = parseCanonicalId(cd);
+		if (id >= 0)
+			return get(id);
+		
+		// 12/4/16 - 209 conserved domains have been manually classified, including all top hits. Of the
+		// remainder, 698 appear as cd2, 515 as cd3, 1439 as cd4, and 2206 as cd5. All of the last 40 cds
+		// that I checked were NEGATIVE and I'm convinced I've found all the POSITIVEs (i.e. COIs). So
+		// any unknown cd will be henceforth classified as NEGATIVE, and every cd will get a classification.
+		// 7/21/17 - More confirmation of above.
+		return byOtherKey.getOrDefault(cd, ConservedDomainCOIness.NEGATIVE);
+	}
+	
+	
+	// Dense array indexed by pssm id: 0 for unclassified, else COIness ordinal + 1. Don't modify.
+	byte[] getCodes()
+	{
+		return codeByPssmId;
+	}
+	
+	
+	Map<String, ConservedDomainCOIness> getOtherKeys()
+	{
+		return Collections.unmodifiableMap(byOtherKey);
+	}
+	
+	
+	// Length of the dense array, i.e. 1 + the largest classified pssm id.
+	public int getDenseSize()
+	{
+		return codeByPssmId.length;
+	}
+}
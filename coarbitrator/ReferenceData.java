@@ -0,0 +1,97 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ReferenceData.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+
+//
+// One immutable version of the reference tables (cds.csv and cdd.versions). A classification takes the current
+// ReferenceData from a ReferenceDataHolder when it starts and uses it throughout, so a reload in mid-run
+// never mixes versions within a report. Results record getVersion().
+//
+
+
+public class ReferenceData 
+{
+	private final long						version;
+	private final ReferenceSnapshot			snapshot;
+	private final PssmCOInessTable			coinessTable;
+	private final long						loadTimeMillis;
+	
+	
+	ReferenceData(long version, ReferenceSnapshot snapshot)
+	{
+		this.version = version;
+		this.snapshot = snapshot;
+		this.coinessTable = snapshot.getCOInessTable();
+		this.loadTimeMillis = System.currentTimeMillis();
+	}
+	
+	
+	// 1 for the 1st tables loaded by this process, incremented by each reload that changes them.
+	public long getVersion()
+	{
+		return version;
+	}
+	
+	
+	// Identifies the source contents across processes.
+	public String getSourceHash()
+	{
+		return snapshot.getSourceHash();
+	}
+	
+	
+	public long getLoadTimeMillis()
+	{
+		return loadTimeMillis;
+	}
+	
+	
+	public ConservedDomainCOIness getCOIness(int pssmId)
+	{
+		return coinessTable.get(pssmId);
+	}
+	
+	
+	public ConservedDomainCOIness getCOIness(String cd)
+	{
+		return coinessTable.get(cd);
+	}
+	
+	
+	// Null if unknown.
+	public String getAccession(String pssmId)
+	{
+		return snapshot.getAccession(pssmId);
+	}
+	
+	
+	public String getShortName(String pssmId)
+	{
+		return snapshot.getShortName(pssmId);
+	}
+	
+	
+	public String toString()
+	{
+		return "Reference data version " + version + " (" + snapshot.size() + " pssms, source hash " + 
+			getSourceHash().substring(0, 12) + ")";
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ReferenceDataHolder.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+//
+// Holds the current ReferenceData and swaps in a new version when cds.csv or cdd.versions changes, so a 
+// long-running process picks up newly curated cds without a restart. The swap is a single atomic reference 
+// write: readers calling get() see either the old tables or the new ones, never a mix, and classifications
+// already in progress keep the version they started with.
+//
+// Tables are loaded (via ReferenceSnapshot) on the 1st call to get(). A failed reload leaves the current 
+// version in place.
+//
+
+
+public class ReferenceDataHolder 
+{
+	private final File								cdf;
+	private final File								cddVersionsf;
+	private final AtomicReference<ReferenceData>	current;
+	private long[]									loadedStamps;		// guarded by this
+	private ScheduledExecutorService				reloader;			// guarded by this
+	
+	
+	public ReferenceDataHolder(File cdf, File cddVersionsf)
+	{
+		this.cdf = cdf;
+		this.cddVersionsf = cddVersionsf;
+		current = new AtomicReference<>();
+	}
+	
+	
+	// Throws UncheckedIOException if the tables have never been loaded and can't be.
+	public ReferenceData get()
+	{
+		ReferenceData ret = current.get();
+		if (ret != null)
+			return ret;
+		try
+		{
+			reload();
+		}
+		catch (IOException x)
+		{
+			throw new UncheckedIOException("Couldn't load conserved domain tables", x);
+		}
+		return current.get();
+	}
+	
+	
+	//
+	// Loads the source files if they've changed since the last load. Returns true if a new version was swapped
+	// in. Sources that were only touched, without changing their contents, don't make a new version.
+	//
+	public synchronized boolean reload() throws IOException
+	{
+		long[] stamps = stamps();
+		ReferenceData prev = current.get();
+		if (prev != null  &&  Arrays.equals(stamps, loadedStamps))
+			return false;
+		
+		ReferenceSnapshot snap = ReferenceSnapshot.load(cdf, cddVersionsf);
+		loadedStamps = stamps;
+		if (prev != null  &&  prev.getSourceHash().equals(snap.getSourceHash()))
+			return false;
+		long version = (prev == null)  ?  1  :  prev.getVersion() + 1;
+		current.set(new ReferenceData(version, snap));
+		return true;
+	}
+	
+	
+	private long[] stamps()
+	{
+		return new long[] { cdf.length(), cdf.lastModified(), cddVersionsf.length(), cddVersionsf.lastModified() };
+	}
+	
+	
+	// Checks for changed sources every periodMillis on a daemon thread. Reloads and failures are logged.
+	public synchronized void startAutoReload(long periodMillis)
+	{
+		if (reloader != null)
+			return;
+		reloader = Executors.newSingleThreadScheduledExecutor(r -> 
+		{
+			Thread t = new Thread(r, "reference-data-reloader");
+			t.setDaemon(true);
+			return t;
+		});
+		reloader.scheduleWithFixedDelay(() -> 
+		{
+			try
+			{
+				if (reload())
+					sop("Loaded " + current.get());
+			}
+			catch (IOException | RuntimeException x)
+			{
+				sop("Couldn't reload conserved domain tables, keeping " + current.get() + ": " + x.getMessage());
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	public synchronized void stopAutoReload()
+	{
+		if (reloader != null)
+		{
+			reloader.shutdownNow();
+			reloader = null;
+		}
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+}
@@ -0,0 +1,452 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ReferenceSnapshot.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+
+//
+// Compiled, memory-mapped copy of the reference tables: pssm id -> accession and short name (from 
+// cdd.versions) and the COIness table (from cds.csv). Parsing cdd.versions into a map of Pairs costs every JVM
+// that classifies, which adds up when Phase 2 is sharded into many short processes. A snapshot is parsed once 
+// and then loaded by mapping it: the pssm id, offset, and string pool sections are used in place, and only 
+// the COIness codes are copied out, in 1 bulk read.
+//
+// The header holds the size, modification time, and SHA-256 of each source file. If the sizes and times match,
+// the snapshot is used as is. If they don't, the sources are hashed; if the hashes still match (e.g. the 
+// files were copied or touched) the times are updated in the header, otherwise the snapshot is rebuilt. 
+// Snapshots are written to a temp file and renamed into place, so concurrent processes never see a partial 
+// one. If the snapshot can't be written, the compiled tables are used from memory.
+//
+// File layout, big-endian:
+//		long	magic
+//		int		format version
+//		long	cds.csv size, long cds.csv mtime, long cdd.versions size, long cdd.versions mtime
+//		byte[32]	SHA-256 of, for cds.csv then cdd.versions, the file's length as a big-endian long and then its bytes
+//		int		n other keys, then for each: int length, UTF-8 bytes, byte COIness code
+//		int		dense table size, then that many COIness codes
+//		int		n pssms, then n sorted pssm ids, n+1 accession offsets, n short name offsets
+//		int		string pool size, then the pool: accession 0, short name 0, accession 1, ... (UTF-8)
+//
+
+
+public class ReferenceSnapshot 
+{
+	private final static long				MAGIC					= 0x434f415242524546L;		// "COARBREF"
+	private final static int				FORMAT_VERSION			= 2;
+	private final static int				STAMPS_OFFSET			= 12;
+	private final static int				HASH_LEN				= 32;
+	final static String						DFLT_SNAPSHOT_NAME		= "cd_reference.snap";
+	
+	private final PssmCOInessTable			coinessTable;
+	private final IntBuffer					pssmIds;
+	private final IntBuffer					accOffsets;
+	private final IntBuffer					shortNameOffsets;
+	private final ByteBuffer				pool;
+	private final byte[]					sourceHash;
+	private boolean							rebuilt;
+	
+	
+	private ReferenceSnapshot(ByteBuffer buf) throws IOException
+	{
+		try
+		{
+			if (buf.getLong() != MAGIC  ||  buf.getInt() != FORMAT_VERSION)
+				throw new IOException("Not a reference snapshot, or wrong format version");
+			buf.position(STAMPS_OFFSET + 4*8);
+			sourceHash = new byte[HASH_LEN];
+			buf.get(sourceHash);
+			
+			int nOtherKeys = buf.getInt();
+			Map<String, ConservedDomainCOIness> byOtherKey = new HashMap<>();
+			ConservedDomainCOIness[] values = ConservedDomainCOIness.values();
+			for (int i=0; i<nOtherKeys; i++)
+			{
+				byte[] bytes = new byte[buf.getInt()];
+				buf.get(bytes);
+				byOtherKey.put(new String(bytes, StandardCharsets.UTF_8), values[buf.get() - 1]);
+			}
+			byte[] codes = new byte[buf.getInt()];
+			buf.get(codes);
+			coinessTable = PssmCOInessTable.fromCodes(codes, byOtherKey);
+			
+			int nPssms = buf.getInt();
+			pssmIds = slice(buf, 4*nPssms).asIntBuffer();
+			accOffsets = slice(buf, 4*(nPssms+1)).asIntBuffer();
+			shortNameOffsets = slice(buf, 4*nPssms).asIntBuffer();
+			int poolSize = buf.getInt();
+			pool = slice(buf, poolSize);
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException x)
+		{
+			throw new IOException("Truncated or corrupt reference snapshot");
+		}
+	}
+	
+	
+	// Returns the next nBytes of buf, and advances buf past them.
+	private static ByteBuffer slice(ByteBuffer buf, int nBytes)
+	{
+		ByteBuffer ret = buf.slice();
+		ret.limit(nBytes);
+		buf.position(buf.position() + nBytes);
+		return ret;
+	}
+	
+	
+	//
+	// Loads snapf, building or rebuilding it first if it's missing, unreadable, or out of date with respect to 
+	// cdf (cds.csv) or cddVersionsf.
+	//
+	public static ReferenceSnapshot load(File cdf, File cddVersionsf, File snapf) throws IOException
+	{
+		if (snapf.exists())
+		{
+			try
+			{
+				ReferenceSnapshot snap = loadIfCurrent(cdf, cddVersionsf, snapf);
+				if (snap != null)
+					return snap;
+			}
+			catch (IOException x)
+			{
+				// Corrupt or from an older version. Rebuild.
+			}
+		}
+		
+		byte[] bytes = compile(cdf, cddVersionsf);
+		ReferenceSnapshot ret;
+		try
+		{
+			write(bytes, snapf);
+			ret = map(snapf);
+		}
+		catch (IOException x)
+		{
+			// E.g. read-only directory. Use the compiled tables from memory.
+			ret = new ReferenceSnapshot(ByteBuffer.wrap(bytes));
+		}
+		ret.rebuilt = true;
+		return ret;
+	}
+	
+	
+	// Snapshot goes in the same directory as cds.csv.
+	public static ReferenceSnapshot load(File cdf, File cddVersionsf) throws IOException
+	{
+		return load(cdf, cddVersionsf, new File(cdf.getAbsoluteFile().getParentFile(), DFLT_SNAPSHOT_NAME));
+	}
+	
+	
+	// Null if out of date.
+	private static ReferenceSnapshot loadIfCurrent(File cdf, File cddVersionsf, File snapf) throws IOException
+	{
+		long[] stamps = stampsOf(cdf, cddVersionsf);
+		long[] snapStamps = new long[stamps.length];
+		byte[] snapHash = new byte[HASH_LEN];
+		try
+		(
+			FileInputStream fis = new FileInputStream(snapf);
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(fis));
+		)
+		{
+			if (dis.readLong() != MAGIC  ||  dis.readInt() != FORMAT_VERSION)
+				return null;
+			for (int i=0; i<snapStamps.length; i++)
+				snapStamps[i] = dis.readLong();
+			dis.readFully(snapHash);
+		}
+		
+		if (!Arrays.equals(stamps, snapStamps))
+		{
+			// Fast check failed, so compare contents.
+			if (!Arrays.equals(hashSources(cdf, cddVersionsf), snapHash))
+				return null;
+			try (RandomAccessFile raf = new RandomAccessFile(snapf, "rw"))
+			{
+				raf.seek(STAMPS_OFFSET);
+				for (long stamp: stamps)
+					raf.writeLong(stamp);
+			}
+			catch (IOException x)
+			{
+				// Read-only: just pay for hashing next time too.
+			}
+		}
+		return map(snapf);
+	}
+	
+	
+	private static ReferenceSnapshot map(File snapf) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(snapf.toPath(), StandardOpenOption.READ))
+		{
+			// The mapping stays valid after the channel is closed.
+			return new ReferenceSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+	
+	
+	private static long[] stampsOf(File cdf, File cddVersionsf) throws IOException
+	{
+		if (!cdf.exists()  ||  !cddVersionsf.exists())
+			throw new FileNotFoundException("Need " + cdf.getAbsolutePath() + " and " + cddVersionsf.getAbsolutePath());
+		return new long[] { cdf.length(), cdf.lastModified(), cddVersionsf.length(), cddVersionsf.lastModified() };
+	}
+	
+	
+	private static byte[] hashSources(File cdf, File cddVersionsf) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException x)
+		{
+			throw new IOException("SHA-256 not available");		// every JRE must have it
+		}
+		byte[] buf = new byte[1 << 16];
+		for (File f: new File[] { cdf, cddVersionsf })
+		{
+			// Length first, so that moving bytes from the end of 1 file to the start of the other changes the hash.
+			try (FileInputStream fis = new FileInputStream(f))
+			{
+				digest.update(ByteBuffer.allocate(8).putLong(fis.getChannel().size()).array());
+				int n;
+				while ((n = fis.read(buf)) > 0)
+					digest.update(buf, 0, n);
+			}
+		}
+		return digest.digest();
+	}
+	
+	
+	// Parses the sources, compiles the tables, and returns the snapshot's bytes.
+	private static byte[] compile(File cdf, File cddVersionsf) throws IOException
+	{
+		long[] stamps = stampsOf(cdf, cddVersionsf);
+		byte[] hash = hashSources(cdf, cddVersionsf);
+		Map<String, ConservedDomainCOIness> accToCOIness = PssmCOInessTable.readAccToCOIness(cdf);
+		CdPssmidToAccAndShortName pssmMap = new CdPssmidToAccAndShortName(cddVersionsf);
+		PssmCOInessTable table = PssmCOInessTable.compile(accToCOIness, pssmMap);
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(baos))
+		{
+			dos.writeLong(MAGIC);
+			dos.writeInt(FORMAT_VERSION);
+			for (long stamp: stamps)
+				dos.writeLong(stamp);
+			dos.write(hash);
+			
+			Map<String, ConservedDomainCOIness> otherKeys = new TreeMap<>(table.getOtherKeys());
+			dos.writeInt(otherKeys.size());
+			for (Map.Entry<String, ConservedDomainCOIness> entry: otherKeys.entrySet())
+			{
+				byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+				dos.writeByte(entry.getValue().ordinal() + 1);
+			}
+			byte[] codes = table.getCodes();
+			dos.writeInt(codes.length);
+			dos.write(codes);
+			
+			int[] ids = pssmMap.getPssmIds();
+			Arrays.sort(ids);
+			ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+			int[] accOffs = new int[ids.length + 1];
+			int[] shortNameOffs = new int[ids.length];
+			for (int i=0; i<ids.length; i++)
+			{
+				int id = ids[i];
+				accOffs[i] = poolBytes.size();
+				poolBytes.write(pssmMap.getAccession(id).getBytes(StandardCharsets.UTF_8));
+				shortNameOffs[i] = poolBytes.size();
+				poolBytes.write(pssmMap.getShortName(id).getBytes(StandardCharsets.UTF_8));
+			}
+			accOffs[ids.length] = poolBytes.size();
+			dos.writeInt(ids.length);
+			for (int id: ids)
+				dos.writeInt(id);
+			for (int off: accOffs)
+				dos.writeInt(off);
+			for (int off: shortNameOffs)
+				dos.writeInt(off);
+			dos.writeInt(poolBytes.size());
+			poolBytes.writeTo(dos);
+		}
+		return baos.toByteArray();
+	}
+	
+	
+	private static void write(byte[] bytes, File snapf) throws IOException
+	{
+		File dir = snapf.getAbsoluteFile().getParentFile();
+		Path tmp = Files.createTempFile(dir.toPath(), snapf.getName(), ".tmp");
+		try
+		{
+			Files.write(tmp, bytes);
+			try
+			{
+				Files.move(tmp, snapf.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException x)
+			{
+				Files.move(tmp, snapf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			// Temp files are private to the owner, but other users' shards may share the snapshot.
+			snapf.setReadable(true, false);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	
+	public PssmCOInessTable getCOInessTable()
+	{
+		return coinessTable;
+	}
+	
+	
+	// Index into the pssm sections, or -1.
+	private int indexOf(int pssmId)
+	{
+		int lo = 0;
+		int hi = pssmIds.limit() - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int midId = pssmIds.get(mid);
+			if (midId < pssmId)
+				lo = mid + 1;
+			else if (midId > pssmId)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+	
+	
+	private String poolString(int start, int end)
+	{
+		byte[] bytes = new byte[end - start];
+		for (int i=0; i<bytes.length; i++)
+			bytes[i] = pool.get(start + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	
+	public boolean containsPssm(int pssmId)
+	{
+		return indexOf(pssmId) >= 0;
+	}
+	
+	
+	// Null if unknown.
+	public String getAccession(int pssmId)
+	{
+		int i = indexOf(pssmId);
+		return (i < 0)  ?  null  :  poolString(accOffsets.get(i), shortNameOffsets.get(i));
+	}
+	
+	
+	public String getAccession(String pssmId)
+	{
+		return getAccession(PssmCOInessTable.parseCanonicalId(pssmId));
+	}
+	
+	
+	// Null if unknown. The short name of pssm i ends where the accession of pssm i+1 starts.
+	public String getShortName(int pssmId)
+	{
+		int i = indexOf(pssmId);
+		return (i < 0)  ?  null  :  poolString(shortNameOffsets.get(i), accOffsets.get(i+1));
+	}
+	
+	
+	public String getShortName(String pssmId)
+	{
+		return getShortName(PssmCOInessTable.parseCanonicalId(pssmId));
+	}
+	
+	
+	public int size()
+	{
+		return pssmIds.limit();
+	}
+	
+	
+	public String getSourceHash()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (byte b: sourceHash)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+	
+	
+	// True if this load had to parse the sources.
+	public boolean wasRebuilt()
+	{
+		return rebuilt;
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	// Builds the snapshot if needed, and checks it against the map parsed from cdd.versions.
+	public static void main(String[] args) throws IOException
+	{
+		sop("START");
+		File cdf = new File("data/cds.csv").exists()  ?  new File("data/cds.csv")  :  new File("cds.csv");
+		File cddVersionsf = CdPssmidToAccAndShortName.getDefaultFile();
+		long start = System.nanoTime();
+		ReferenceSnapshot snap = load(cdf, cddVersionsf);
+		sop((snap.wasRebuilt()  ?  "Rebuilt"  :  "Loaded") + " snapshot of " + snap.size() + " pssms in " + 
+			(System.nanoTime() - start)/1000000 + " msec, source hash " + snap.getSourceHash());
+		
+		CdPssmidToAccAndShortName pssmMap = new CdPssmidToAccAndShortName(cddVersionsf);
+		int nMismatches = 0;
+		for (int pssm: pssmMap.getPssmIds())
+		{
+			if (!pssmMap.getAccession(pssm).equals(snap.getAccession(pssm))  ||  
+				!pssmMap.getShortName(pssm).equals(snap.getShortName(pssm)))
+				nMismatches++;
+		}
+		PssmCOInessTable table = PssmCOInessTable.compile(PssmCOInessTable.readAccToCOIness(cdf), pssmMap);
+		if (!Arrays.equals(table.getCodes(), snap.getCOInessTable().getCodes())  ||  
+			!table.getOtherKeys().equals(snap.getCOInessTable().getOtherKeys()))
+			nMismatches++;
+		sop(nMismatches + " mismatches");
+		sop("DONE");
+	}
+}
@@ -20,24 +20,32 @@
 package coarbitrator;
 
 import java.io.*;
-import java.util.Stack;
+import java.util.ArrayDeque;
 
 
-public class ReversibleBufferedReader extends BufferedReader
+//
+// LineSource over any Reader, with Strings for lines. Pushed-back lines are returned last in, first out. 
+// For byte input, ByteLineSource is faster and doesn't allocate a String per line.
+//
+
+
+public class ReversibleBufferedReader extends BufferedReader implements LineSource
 {
-	private Stack<String>		stack;
+	private ArrayDeque<String>	stack;
+	private String				lastLine;
 	
 	
 	public ReversibleBufferedReader(Reader src)
 	{
 		super(src);
-		stack = new Stack<>();
+		stack = new ArrayDeque<>();
 	}
 	
 	
 	public String readLine() throws IOException
 	{
-		return stack.isEmpty()  ?  super.readLine()  :  stack.pop();
+		lastLine = stack.isEmpty()  ?  super.readLine()  :  stack.pop();
+		return lastLine;
 	}
 	
 	
@@ -45,4 +53,13 @@ public class ReversibleBufferedReader extends BufferedReader
 	{
 		stack.push(s);
 	}
+	
+	
+	public void unread()
+	{
+		if (lastLine == null)
+			throw new IllegalStateException("No line to unread");
+		push(lastLine);
+		lastLine = null;
+	}
 }
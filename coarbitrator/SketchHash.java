@@ -0,0 +1,76 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    SketchHash.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+
+//
+// 64-bit hashes for the sketch counters. hashCode() is only 32 bits, which isn't enough to tell apart hundreds 
+// of millions of subjects, so character sequences (accessions, query names) are hashed over their chars, and 
+// enums over their names. Integral numbers and chars are hashed by value. Nothing else is accepted: other 
+// hashCode()s, e.g. identity hashes, can differ from JVM to JVM. So the hash doesn't depend on the JVM or the
+// run, and sketches built on different machines can be merged.
+//
+
+
+class SketchHash
+{
+	private final static long		SEED		= 0x9E3779B97F4A7C15L;
+	private final static long		MULT		= 0xC6A4A7935BD1E995L;
+	
+	
+	private SketchHash()		{ }
+	
+	
+	static long hash64(Object key)
+	{
+		if (key instanceof CharSequence)
+			return hash64((CharSequence)key);
+		else if (key instanceof Enum)
+			return hash64(((Enum<?>)key).name());
+		else if (key instanceof Long  ||  key instanceof Integer  ||  key instanceof Short  ||  key instanceof Byte)
+			return mix(SEED ^ ((Number)key).longValue());
+		else if (key instanceof Character)
+			return mix(SEED ^ (Character)key);
+		else
+			throw new IllegalArgumentException("No machine-independent hash for sketch keys of " + key.getClass().getName());
+	}
+	
+	
+	static long hash64(CharSequence cs)
+	{
+		long h = SEED ^ (cs.length() * MULT);
+		for (int i=0; i<cs.length(); i++)
+		{
+			h ^= cs.charAt(i);
+			h *= MULT;
+			h ^= h >>> 47;
+		}
+		return mix(h);
+	}
+	
+	
+	// Finalizer from SplitMix64: every input bit affects every output bit.
+	static long mix(long h)
+	{
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+}
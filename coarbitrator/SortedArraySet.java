@@ -0,0 +1,179 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    SortedArraySet.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.util.*;
+
+
+//
+// Immutable sorted set over a sorted array of distinct elements, in natural order. Cheaper than a TreeSet 
+// when the elements are all known up front: 1 array instead of a node per element, and contains() is a 
+// binary search. Sub-, head- and tail-sets are views on the same array. A TreeSet built from one, via 
+// new TreeSet<>(sortedArraySet), is built in linear time without comparisons.
+//
+
+
+public class SortedArraySet<T> extends AbstractSet<T> implements SortedSet<T>
+{
+	private final Object[]			items;
+	private final int				from;		// inclusive
+	private final int				to;			// exclusive
+	
+	
+	// The caller guarantees that items[0..size) are sorted in natural order with no duplicates, and doesn't 
+	// modify them afterward.
+	SortedArraySet(Object[] items, int size)
+	{
+		this(items, 0, size);
+	}
+	
+	
+	private SortedArraySet(Object[] items, int from, int to)
+	{
+		this.items = items;
+		this.from = from;
+		this.to = to;
+	}
+	
+	
+	// Sorts and dedupes items[0..size) in place, then wraps them.
+	static <T> SortedArraySet<T> sortAndWrap(Object[] items, int size)
+	{
+		Arrays.sort(items, 0, size);
+		int nUnique = 0;
+		for (int i=0; i<size; i++)
+			if (nUnique == 0  ||  compare(items[nUnique-1], items[i]) != 0)
+				items[nUnique++] = items[i];
+		Arrays.fill(items, nUnique, size, null);
+		return new SortedArraySet<T>(items, nUnique);
+	}
+	
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object o1, Object o2)
+	{
+		return ((Comparable)o1).compareTo(o2);
+	}
+	
+	
+	@Override
+	public int size()
+	{
+		return to - from;
+	}
+	
+	
+	@Override
+	public boolean contains(Object o)
+	{
+		return o != null  &&  Arrays.binarySearch(items, from, to, o) >= 0;
+	}
+	
+	
+	@Override
+	public Iterator<T> iterator()
+	{
+		return new Iterator<T>()
+		{
+			private int next = from;
+			
+			@Override
+			public boolean hasNext()
+			{
+				return next < to;
+			}
+			
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next()
+			{
+				if (next >= to)
+					throw new NoSuchElementException();
+				return (T)items[next++];
+			}
+		};
+	}
+	
+	
+	@Override
+	public Object[] toArray()
+	{
+		return Arrays.copyOfRange(items, from, to);
+	}
+	
+	
+	// Natural ordering.
+	@Override
+	public Comparator<? super T> comparator()
+	{
+		return null;
+	}
+	
+	
+	// Index of the 1st element >= e.
+	private int lowerBound(Object e)
+	{
+		int index = Arrays.binarySearch(items, from, to, e);
+		return (index >= 0)  ?  index  :  -index - 1;
+	}
+	
+	
+	@Override
+	public SortedSet<T> subSet(T fromElement, T toElement)
+	{
+		if (compare(fromElement, toElement) > 0)
+			throw new IllegalArgumentException("fromElement > toElement");
+		return new SortedArraySet<T>(items, lowerBound(fromElement), lowerBound(toElement));
+	}
+	
+	
+	@Override
+	public SortedSet<T> headSet(T toElement)
+	{
+		return new SortedArraySet<T>(items, from, lowerBound(toElement));
+	}
+	
+	
+	@Override
+	public SortedSet<T> tailSet(T fromElement)
+	{
+		return new SortedArraySet<T>(items, lowerBound(fromElement), to);
+	}
+	
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public T first()
+	{
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return (T)items[from];
+	}
+	
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public T last()
+	{
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return (T)items[to-1];
+	}
+}
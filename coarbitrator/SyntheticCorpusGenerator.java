@@ -0,0 +1,331 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    SyntheticCorpusGenerator.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Deterministic, seeded generator of rpsblast_out.csv and blastp_out.csv files of any size, for throughput 
+// and memory testing. Output is streamed, so 10^7 queries need no more memory than 10.
+//
+// Rpsblast subjects are real pssm ids from cdd.versions, grouped by the COIness the classifier gives them, i.e.
+// as compiled into a PssmCOInessTable: cds.csv's COIness for their accessions, NEGATIVE if unlisted. Subjects
+// are numeric pssm ids, so an unlisted "cl" superfamily is NEGATIVE too. A fraction of queries look like
+// COI: their best echelon is POSITIVE, often at e = 0 and often tied with an UNINFORMATIVE hit. The rest look like
+// other proteins, sometimes with weak POSITIVE hits further down. Hits per query are skewed toward rpsblast's
+// limit of 10, e-values increase down the list by 1-30 orders of magnitude per echelon, and about 1 echelon in
+// 5 has 2-4 tied members, so every branch of the classifier gets exercised.
+//
+// If no cdd.versions is available, writeCddVersions() makes one that covers every accession in cds.csv.
+//
+
+
+public class SyntheticCorpusGenerator 
+{
+	final static long							DFLT_SEED				= 20180305L;
+	final static int							FIRST_PSSM_ID			= 100000;
+	private final static double					DFLT_COI_FRACTION		= 0.3;
+	private final static int					MAX_RPSBLAST_HITS		= 10;
+	private final static double					TIE_PROBABILITY			= 0.2;
+	private final static String[]				PHYLA					= 
+		{ "Annelida", "Arthropoda", "Chordata", "Cnidaria", "Echinodermata", "Mollusca", "Nematoda", "Porifera" };
+	private final static String[]				CD_PREFIXES				= { "cd", "cl", "pfam", "COG", "smart", "PRK" };
+	
+	private Random								rand;
+	private double								coiFraction;
+	private int[]								positivePssms;
+	private int[]								negativePssms;
+	private int[]								uninformativePssms;
+	private int[]								subjects;				// of the current query
+	private int									nSubjects;
+	private StringBuilder						sb;
+	
+	
+	public SyntheticCorpusGenerator(long seed, Map<String, ConservedDomainCOIness> accToCOIness, 
+		CdPssmidToAccAndShortName pssmMap)
+	{
+		this(seed, accToCOIness, pssmMap, DFLT_COI_FRACTION);
+	}
+	
+	
+	// For blastp output only, which doesn't draw from conserved domains. writeRpsblast() needs a pssm map.
+	public SyntheticCorpusGenerator(long seed)
+	{
+		rand = new Random(seed);
+		coiFraction = DFLT_COI_FRACTION;
+		subjects = new int[MAX_RPSBLAST_HITS];
+		sb = new StringBuilder();
+	}
+	
+	
+	public SyntheticCorpusGenerator(long seed, Map<String, ConservedDomainCOIness> accToCOIness, 
+		CdPssmidToAccAndShortName pssmMap, double coiFraction)
+	{
+		this(seed);
+		this.coiFraction = coiFraction;
+		
+		// Sort the ids, so that output doesn't depend on the order of cdd.versions. Pools come from the same
+		// compiled table the classifier uses, so each pool's hits score as its COIness.
+		int[] ids = pssmMap.getPssmIds();
+		Arrays.sort(ids);
+		PssmCOInessTable table = PssmCOInessTable.compile(accToCOIness, pssmMap);
+		int[][] byNess = new int[ConservedDomainCOIness.values().length][ids.length];
+		int[] counts = new int[byNess.length];
+		for (int id: ids)
+		{
+			ConservedDomainCOIness ness = table.get(id);
+			byNess[ness.ordinal()][counts[ness.ordinal()]++] = id;
+		}
+		positivePssms = Arrays.copyOf(byNess[ConservedDomainCOIness.POSITIVE.ordinal()], counts[ConservedDomainCOIness.POSITIVE.ordinal()]);
+		negativePssms = Arrays.copyOf(byNess[ConservedDomainCOIness.NEGATIVE.ordinal()], counts[ConservedDomainCOIness.NEGATIVE.ordinal()]);
+		uninformativePssms = Arrays.copyOf(byNess[ConservedDomainCOIness.UNINFORMATIVE.ordinal()], counts[ConservedDomainCOIness.UNINFORMATIVE.ordinal()]);
+		if (negativePssms.length == 0)
+			throw new IllegalArgumentException("No pssm ids to draw from");
+		// Without labeled pssms, fall back to the unlabeled ones.
+		if (positivePssms.length == 0)
+			positivePssms = negativePssms;
+		if (uninformativePssms.length == 0)
+			uninformativePssms = negativePssms;
+	}
+	
+	
+	// Phase 2 query format, e.g. SYN00000042.1_SYNN00000042.
+	static String rpsblastQuery(long n)
+	{
+		return String.format("SYN%08d.1_SYNN%08d", n, n);
+	}
+	
+	
+	// Writes nQueries queries' hits in rpsblast's 12-field csv format, sorted by query then e-value.
+	public void writeRpsblast(Writer w, long nQueries) throws IOException
+	{
+		if (negativePssms == null)
+			throw new IllegalStateException("No pssm ids to draw from: construct with a pssm map for rpsblast output");
+		for (long q=0; q<nQueries; q++)
+			writeRpsblastQuery(w, rpsblastQuery(q));
+	}
+	
+	
+	private void writeRpsblastQuery(Writer w, String query) throws IOException
+	{
+		boolean coi = rand.nextDouble() < coiFraction;
+		int nHits = (rand.nextInt(2) == 0)  ?  MAX_RPSBLAST_HITS  :  1 + rand.nextInt(MAX_RPSBLAST_HITS - 1);
+		nSubjects = 0;
+		
+		// Exponent of 10 in the e-value; MAX_VALUE means e = 0.
+		int exponent = coi  ?  
+			((rand.nextInt(5) < 2)  ?  Integer.MAX_VALUE  :  100 + rand.nextInt(81))  :  
+			5 + rand.nextInt(116);
+		for (int nEchelons=0; nSubjects<nHits; nEchelons++)
+		{
+			if (nEchelons > 0)
+				exponent = ((exponent == Integer.MAX_VALUE)  ?  180  :  exponent) - 1 - rand.nextInt(30);
+			if (exponent < 0)
+				break;				// past rpsblast's e-value cutoff of 10
+			String e = formatEValue(exponent);
+			int echelonSize = (rand.nextDouble() < TIE_PROBABILITY)  ?  2 + rand.nextInt(3)  :  1;
+			for (int i=0; i<echelonSize  &&  nSubjects<nHits; i++)
+			{
+				int pssm = drawSubject(coi, nEchelons, i);
+				int score = Math.max(20, ((exponent == Integer.MAX_VALUE)  ?  600  :  3*exponent + 40) - rand.nextInt(10));
+				int len = 80 + rand.nextInt(420);
+				sb.setLength(0);
+				sb.append(query).append(",gnl|CDD|").append(pssm).append(',')
+				  .append(25 + rand.nextInt(70)).append('.').append(rand.nextInt(10)).append(',')
+				  .append(len).append(',').append(rand.nextInt(len/2)).append(',').append(rand.nextInt(8)).append(',')
+				  .append(1 + rand.nextInt(20)).append(',').append(len + rand.nextInt(20)).append(',')
+				  .append(1 + rand.nextInt(10)).append(',').append(len + rand.nextInt(10)).append(',')
+				  .append(e).append(',').append(score).append('\n');
+				w.append(sb);
+			}
+		}
+	}
+	
+	
+	// Subjects are unique within a query.
+	private int drawSubject(boolean coi, int nthEchelon, int nthInEchelon)
+	{
+		int[] pool;
+		double r = rand.nextDouble();
+		if (coi  &&  nthEchelon == 0)
+			pool = (nthInEchelon == 0  ||  r < 0.5)  ?  positivePssms  :  uninformativePssms;
+		else if (coi)
+			pool = (r < 0.15)  ?  positivePssms  :  (r < 0.35)  ?  uninformativePssms  :  negativePssms;
+		else
+			pool = (r < 0.05  &&  nthEchelon > 0)  ?  positivePssms  :  (r < 0.2)  ?  uninformativePssms  :  negativePssms;
+		
+		for (int nTries=0; ; nTries++)
+		{
+			int pssm = pool[rand.nextInt(pool.length)];
+			boolean dup = false;
+			for (int i=0; i<nSubjects  &&  !dup; i++)
+				dup = subjects[i] == pssm;
+			if (!dup)
+			{
+				subjects[nSubjects++] = pssm;
+				return pssm;
+			}
+			// Tiny pool: use any unused negative.
+			if (nTries > 20)
+				pool = negativePssms;
+		}
+	}
+	
+	
+	// Blast style: "0.0", "3.21e-45", or 3 significant digits for e >= 0.0001. Mantissas stay below 9.995 so
+	// rounding never carries into the next echelon's range.
+	private String formatEValue(int exponent)
+	{
+		if (exponent == Integer.MAX_VALUE)
+			return "0.0";
+		double mantissa = 1 + 8.99 * rand.nextDouble();
+		if (exponent >= 4)
+			return String.format(Locale.ROOT, "%.2fe-%02d", mantissa, exponent);
+		return String.format(Locale.ROOT, "%.3g", mantissa * Math.pow(10, -exponent));
+	}
+	
+	
+	//
+	// Writes nQueries queries' hits in local blastp's 12-field csv format, as read by ProcessPhase1Results. 
+	// Queries are reference protein reps, subjects are gi|...|gb|acc| ids. Subjects are drawn with a skew 
+	// toward a small set of common proteins, as when many reps hit the same COI sequences; e-values run from 0 
+	// to about 10, so some hits fail Phase 1's quality threshold.
+	//
+	public void writeBlastp(Writer w, int nQueries, int hitsPerQuery, int nProteins) throws IOException
+	{
+		for (int q=0; q<nQueries; q++)
+		{
+			String query = "aarep_" + PHYLA[q % PHYLA.length] + "_" + (100000000 + q);
+			double e = 0;
+			for (int h=0; h<hitsPerQuery; h++)
+			{
+				if (h > 0  &&  rand.nextDouble() > TIE_PROBABILITY)
+					e = (e == 0)  ?  1e-180 * (1 + 9*rand.nextDouble())  :  e * Math.pow(10, 1 + 3*rand.nextDouble());
+				double skew = rand.nextDouble();
+				int prot = (int)(skew * skew * nProteins);
+				int len = 90 + rand.nextInt(420);
+				int qStart = 1 + rand.nextInt(50);
+				int sStart = 1 + rand.nextInt(50);
+				sb.setLength(0);
+				sb.append(query).append(",gi|").append(200000000 + prot).append("|gb|SYP").append(String.format("%07d", prot))
+				  .append(".1|,").append(60 + rand.nextInt(40)).append('.').append(rand.nextInt(100)).append(',')
+				  .append(len).append(',').append(rand.nextInt(len/3)).append(',').append(rand.nextInt(5)).append(',')
+				  .append(qStart).append(',').append(qStart + len - 1).append(',')
+				  .append(sStart).append(',').append(sStart + len - 1).append(',')
+				  .append((e == 0)  ?  "0.0"  :  (e < 0.001)  ?  String.format(Locale.ROOT, "%.2e", e)  :  String.format(Locale.ROOT, "%.3g", Math.min(e, 10)))
+				  .append(',').append(50 + rand.nextInt(500)).append('\n');
+				w.append(sb);
+			}
+		}
+	}
+	
+	
+	//
+	// Writes a cdd.versions lookalike: 4 header lines, then accession, short name, pssm id, and version. The 
+	// accessions in accToCOIness come first, so that every classified cd has a pssm id; the rest are filler.
+	//
+	public static void writeCddVersions(File f, Map<String, ConservedDomainCOIness> accToCOIness, int nEntries, long seed)
+		throws IOException
+	{
+		Random rand = new Random(seed);
+		List<String> accs = new ArrayList<>(new TreeSet<>(accToCOIness.keySet()));
+		try
+		(
+			FileWriter fw = new FileWriter(f);
+			BufferedWriter bw = new BufferedWriter(fw);
+		)
+		{
+			bw.write("#\n#\n#\n#Accession\tShort name\tPSSM-Id\tVersion\n");
+			for (int i=0; i<Math.max(nEntries, accs.size()); i++)
+			{
+				String acc;
+				if (i < accs.size())
+					acc = accs.get(i);
+				else
+				{
+					String prefix = CD_PREFIXES[rand.nextInt(CD_PREFIXES.length)];
+					acc = prefix + String.format("%05d", i);
+				}
+				bw.write(acc + "\t" + acc + "_sn\t" + (FIRST_PSSM_ID + i) + "\t" + (1 + rand.nextInt(3)) + "\n");
+			}
+		}
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	private static void usage()
+	{
+		sop("Usage: SyntheticCorpusGenerator rpsblast <out> <n queries> [seed]");
+		sop("       SyntheticCorpusGenerator blastp <out> <n queries> <hits per query> [seed]");
+		sop("       SyntheticCorpusGenerator cddversions <out> <n entries> [seed]");
+		sop("cds.csv (rpsblast, cddversions) and cdd.versions (rpsblast) are read from data/ or the current directory.");
+		System.exit(1);
+	}
+	
+	
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3)
+			usage();
+		String mode = args[0];
+		File outf = new File(args[1]);
+		long n = Long.parseLong(args[2]);
+		int nSeedArg = mode.equals("blastp")  ?  4  :  3;
+		long seed = (args.length > nSeedArg)  ?  Long.parseLong(args[nSeedArg])  :  DFLT_SEED;
+		
+		sop("START");
+		switch (mode)
+		{
+			case "cddversions":
+				writeCddVersions(outf, PssmCOInessTable.readAccToCOIness(PssmCOInessTable.getDefaultFile()), (int)n, seed);
+				break;
+			case "rpsblast":
+			case "blastp":
+				SyntheticCorpusGenerator gen = mode.equals("blastp")  ?
+					new SyntheticCorpusGenerator(seed)  :
+					new SyntheticCorpusGenerator(seed, PssmCOInessTable.readAccToCOIness(PssmCOInessTable.getDefaultFile()), 
+						new CdPssmidToAccAndShortName());
+				try
+				(
+					FileWriter fw = new FileWriter(outf);
+					BufferedWriter bw = new BufferedWriter(fw, 1 << 16);
+				)
+				{
+					if (mode.equals("rpsblast"))
+						gen.writeRpsblast(bw, n);
+					else
+					{
+						if (args.length < 4)
+							usage();
+						int hitsPerQuery = Integer.parseInt(args[3]);
+						gen.writeBlastp(bw, (int)n, hitsPerQuery, Math.max(1, (int)(n * hitsPerQuery / 4)));
+					}
+				}
+				break;
+			default:
+				usage();
+		}
+		sop("DONE");
+	}
+}
@@ -122,19 +122,72 @@ public class TabularBlastHit implements Comparable<TabularBlastHit>, java.io.Ser
 	}
 	
 	
+	// Consistent with equal field values, so usable for sorting. Ties on all fields compare as 0.
 	public int compareTo(TabularBlastHit that)
 	{
-		if (!this.query.equals(that.query))
-			return this.query.compareTo(that.query);
-		if (this.length != that.length)
-			return (int)Math.signum(this.length - that.length);
-		if (this.pctIdent != that.pctIdent)
-			return (int)Math.signum(this.pctIdent - that.pctIdent);
-		if (!this.subject.equals(that.subject))
-			return this.subject.compareTo(that.subject);
-		if (this.e != that.e)
-			return (int)Math.signum(that.e - this.e);
-		return this.hashCode() - that.hashCode();
+		int cmp = this.query.compareTo(that.query);
+		if (cmp != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.length, that.length)) != 0)
+			return cmp;
+		if ((cmp = Float.compare(this.pctIdent, that.pctIdent)) != 0)
+			return cmp;
+		if ((cmp = this.subject.compareTo(that.subject)) != 0)
+			return cmp;
+		if ((cmp = Double.compare(that.e, this.e)) != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.queryStart, that.queryStart)) != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.queryEnd, that.queryEnd)) != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.subjectStart, that.subjectStart)) != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.subjectEnd, that.subjectEnd)) != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.mismatches, that.mismatches)) != 0)
+			return cmp;
+		if ((cmp = Integer.compare(this.gapOpens, that.gapOpens)) != 0)
+			return cmp;
+		return Float.compare(this.score, that.score);
+	}
+	
+	
+	// Returns the 1st field of a line, without building a hit.
+	static String parseQuery(String line, char delim)
+	{
+		int index = line.indexOf(delim);
+		return (index < 0)  ?  line  :  line.substring(0, index);
+	}
+	
+	
+	// Returns the e-value field of a line, without building a hit. Counts non-blank fields only, like the ctor.
+	static double parseEValue(String line, char delim) throws IllegalArgumentException
+	{
+		int eFieldIndex = (delim == '\t')  ?  11  :  10;
+		int nField = 0;
+		int fieldStart = 0;
+		int len = line.length();
+		for (int i=0; i<=len; i++)
+		{
+			if (i < len  &&  line.charAt(i) != delim)
+				continue;
+			String field = line.substring(fieldStart, i).trim();
+			fieldStart = i + 1;
+			if (field.isEmpty())
+				continue;
+			if (nField++ == eFieldIndex)
+			{
+				try
+				{
+					return Double.parseDouble(field);
+				}
+				catch (NumberFormatException x)
+				{
+					throw new IllegalArgumentException("Can't parse e-value:\n" + line);
+				}
+			}
+		}
+		throw new IllegalArgumentException("Wrong number of fields:\n" + line);
 	}
 	
 	
@@ -22,6 +22,7 @@ package coarbitrator;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.*;
 
 
 public class TabularBlastReader implements Closeable
@@ -72,18 +73,93 @@ public class TabularBlastReader implements Closeable
 	}
 	
 	
+	// Handles gzipped and BGZF files.
 	public static List<TabularBlastHit> readAll(File f) throws IOException
 	{
-		FileReader fr = new FileReader(f);
-		BufferedReader br = new BufferedReader(fr);
+		BufferedReader br = CompressedInputs.openReader(f);
 		TabularBlastReader tbr = new TabularBlastReader(br);
 		List<TabularBlastHit> ret = new ArrayList<TabularBlastHit>();
 		TabularBlastHit hit;
 		while ((hit = tbr.readBlastHit()) != null)
 			ret.add(hit);
 		br.close();
-		fr.close();
 		tbr.close();
 		return ret;
 	}
+	
+	
+	//
+	// Stream sources for parallel pipelines. Uncompressed files are split by byte ranges, so .parallel() scales 
+	// across cores. Compressed files are read sequentially and handed out to parallel workers in batches. 
+	// Close the stream (e.g. with try-with-resources) if it might not be fully consumed.
+	//
+	public static Stream<TabularBlastHit> stream(File f) 
+	{
+		return stream(f, ',');
+	}
+	
+	
+	public static Stream<TabularBlastHit> stream(File f, char delim)
+	{
+		if (isCompressed(f))
+			return compressedLines(f).map(line -> new TabularBlastHit(line, delim));
+		TabularBlastSpliterator spliter = new TabularBlastSpliterator(f, delim);
+		return StreamSupport.stream(spliter, false).onClose(spliter::closeAll);
+	}
+	
+	
+	// E-values only, without building TabularBlastHit instances.
+	public static DoubleStream eValueStream(File f)
+	{
+		return eValueStream(f, ',');
+	}
+	
+	
+	public static DoubleStream eValueStream(File f, char delim)
+	{
+		if (isCompressed(f))
+			return compressedLines(f).mapToDouble(line -> TabularBlastHit.parseEValue(line, delim));
+		TabularBlastSpliterator.OfEValue spliter = new TabularBlastSpliterator.OfEValue(f, delim);
+		return StreamSupport.doubleStream(spliter, false).onClose(spliter::closeAll);
+	}
+	
+	
+	private static boolean isCompressed(File f)
+	{
+		try
+		{
+			return f.exists()  &&  CompressedInputs.isCompressed(f);
+		}
+		catch (IOException x)
+		{
+			throw new UncheckedIOException(x);
+		}
+	}
+	
+	
+	// Non-blank, non-comment lines.
+	private static Stream<String> compressedLines(File f)
+	{
+		try
+		{
+			BufferedReader br = CompressedInputs.openReader(f);
+			return br.lines()
+				.filter(line -> !line.trim().isEmpty()  &&  !line.startsWith("#"))
+				.onClose(() -> 
+				{
+					try
+					{
+						br.close();
+					}
+					catch (IOException x)
+					{
+						throw new UncheckedIOException(x);
+					}
+				});
+		}
+		catch (IOException x)
+		{
+			throw new UncheckedIOException(x);
+		}
+	}
 }
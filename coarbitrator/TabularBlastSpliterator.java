@@ -0,0 +1,366 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    TabularBlastSpliterator.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.*;
+
+
+//
+// Splittable source of hits from a tabular blast output file, for use with parallel streams. The file is
+// divided by byte ranges rather than by lines, so splitting costs nothing and doesn't require a pass over
+// the data. A line belongs to the range that contains its 1st byte, so every line is read exactly once no
+// matter where the split points fall. Blank lines and "#" comment lines are skipped, as in 
+// TabularBlastReader.readBlastHit(). Byte ranges are meaningless for compressed files, so 
+// TabularBlastReader doesn't use this class for them.
+//
+
+
+public class TabularBlastSpliterator implements Spliterator<TabularBlastHit>
+{
+	private final static long			MIN_SPLIT_BYTES			= 1 << 20;
+	private final static int			EST_BYTES_PER_LINE		= 80;
+	private final static int			BUF_SIZE				= 1 << 16;
+	
+	private LineRange					range;
+	private char						delim;
+	
+	
+	public TabularBlastSpliterator(File f, char delim)
+	{
+		this(new LineRange(f, 0, f.length(), new ConcurrentLinkedQueue<>()), delim);
+	}
+	
+	
+	private TabularBlastSpliterator(LineRange range, char delim)
+	{
+		this.range = range;
+		this.delim = delim;
+	}
+	
+	
+	public boolean tryAdvance(Consumer<? super TabularBlastHit> action)
+	{
+		String line = range.nextDataLine();
+		if (line == null)
+			return false;
+		try
+		{
+			action.accept(new TabularBlastHit(line, delim));
+		}
+		catch (IllegalArgumentException x)
+		{
+			throw new IllegalArgumentException("Line at byte " + range.lineStart, x);
+		}
+		return true;
+	}
+	
+	
+	public Spliterator<TabularBlastHit> trySplit()
+	{
+		LineRange prefix = range.split();
+		return (prefix == null)  ?  null  :  new TabularBlastSpliterator(prefix, delim);
+	}
+	
+	
+	public long estimateSize()
+	{
+		return range.remainingBytes() / EST_BYTES_PER_LINE;
+	}
+	
+	
+	public int characteristics()
+	{
+		return ORDERED | NONNULL | IMMUTABLE;
+	}
+	
+	
+	// Closes every channel opened by this spliterator or by any spliterator split from it. Streams
+	// built by TabularBlastReader register this as their close handler.
+	void closeAll()
+	{
+		range.closeAll();
+	}
+	
+	
+	//
+	// Primitive specialization that delivers only the e-value of each hit. Doesn't build TabularBlastHit 
+	// instances; only the e-value field is converted.
+	//
+	public static class OfEValue implements Spliterator.OfDouble
+	{
+		private LineRange				range;
+		private char					delim;
+		
+		
+		public OfEValue(File f, char delim)
+		{
+			this(new LineRange(f, 0, f.length(), new ConcurrentLinkedQueue<>()), delim);
+		}
+		
+		
+		private OfEValue(LineRange range, char delim)
+		{
+			if (delim != '\t'  &&  delim != ',')
+				throw new IllegalArgumentException("Illegal delimiter " + delim + " (must be tab or comma)");
+			this.range = range;
+			this.delim = delim;
+		}
+		
+		
+		public boolean tryAdvance(DoubleConsumer action)
+		{
+			String line = range.nextDataLine();
+			if (line == null)
+				return false;
+			try
+			{
+				action.accept(TabularBlastHit.parseEValue(line, delim));
+			}
+			catch (IllegalArgumentException x)
+			{
+				throw new IllegalArgumentException("Line at byte " + range.lineStart, x);
+			}
+			return true;
+		}
+		
+		
+		public Spliterator.OfDouble trySplit()
+		{
+			LineRange prefix = range.split();
+			return (prefix == null)  ?  null  :  new OfEValue(prefix, delim);
+		}
+		
+		
+		public long estimateSize()
+		{
+			return range.remainingBytes() / EST_BYTES_PER_LINE;
+		}
+		
+		
+		public int characteristics()
+		{
+			return ORDERED | NONNULL | IMMUTABLE;
+		}
+		
+		
+		void closeAll()
+		{
+			range.closeAll();
+		}
+	}  // End of static inner class OfEValue
+	
+	
+	//
+	// A byte range [start, end) of a file, read as lines. The channel isn't opened until the 1st read, and a
+	// range can only be split before that. Lines are found by scanning a byte buffer filled in bulk from the 
+	// channel, and decoded with the platform charset, as FileReader does.
+	//
+	private static class LineRange implements Closeable
+	{
+		private File							file;
+		private long							start;
+		private long							end;
+		private long							pos;
+		private long							lineStart;
+		private InputStream						in;
+		private FileChannel						channel;
+		private byte[]							buf;
+		private int								bufPos;		// 1st unconsumed byte in buf; file position is pos
+		private int								bufLimit;
+		private boolean							eof;
+		private ConcurrentLinkedQueue<LineRange>	openRanges;		// shared by all ranges split from a root
+		
+		
+		LineRange(File file, long start, long end, ConcurrentLinkedQueue<LineRange> openRanges)
+		{
+			this.file = file;
+			this.start = start;
+			this.end = end;
+			this.openRanges = openRanges;
+			buf = new byte[BUF_SIZE];
+		}
+		
+		
+		// Returns the 1st half of this range, as required for ORDERED spliterators, and keeps the 2nd half.
+		LineRange split()
+		{
+			if (in != null  ||  end - start < 2 * MIN_SPLIT_BYTES)
+				return null;
+			long mid = start + (end - start) / 2;
+			LineRange prefix = new LineRange(file, start, mid, openRanges);
+			start = mid;
+			return prefix;
+		}
+		
+		
+		long remainingBytes()
+		{
+			return Math.max(0, end - ((in == null) ? start : pos));
+		}
+		
+		
+		// Returns the next line that isn't blank or a comment, or null if there are no more lines that start
+		// in this range.
+		String nextDataLine()
+		{
+			try
+			{
+				if (in == null)
+				{
+					if (channel != null)
+						return null;		// already exhausted and closed
+					open();
+				}
+				String line;
+				while ((line = readLine()) != null)
+				{
+					if (!line.trim().isEmpty()  &&  !line.startsWith("#"))
+						return line;
+				}
+				close();
+				return null;
+			}
+			catch (IOException x)
+			{
+				closeQuietly();
+				throw new UncheckedIOException(x);
+			}
+		}
+		
+		
+		private void open() throws IOException
+		{
+			channel = FileChannel.open(file.toPath());
+			openRanges.add(this);
+			// If the range doesn't start at the beginning of a line, the partial line belongs to the previous range.
+			long readFrom = Math.max(0, start - 1);
+			channel.position(readFrom);
+			in = Channels.newInputStream(channel);
+			pos = readFrom;
+			if (start > 0)
+				skipPastNewline();
+		}
+		
+		
+		// Consumes bytes through the next '\n', or to end of file.
+		private void skipPastNewline() throws IOException
+		{
+			while (true)
+			{
+				for (int i=bufPos; i<bufLimit; i++)
+				{
+					if (buf[i] == '\n')
+					{
+						pos += i + 1 - bufPos;
+						bufPos = i + 1;
+						return;
+					}
+				}
+				pos += bufLimit - bufPos;
+				bufPos = bufLimit;
+				if (eof)
+					return;
+				fill();
+			}
+		}
+		
+		
+		// Moves unconsumed bytes to the front of buf, growing it if they fill it, and reads more.
+		private void fill() throws IOException
+		{
+			int nUnconsumed = bufLimit - bufPos;
+			if (nUnconsumed == buf.length)
+				buf = Arrays.copyOfRange(buf, bufPos, 2 * buf.length);
+			else if (bufPos > 0)
+				System.arraycopy(buf, bufPos, buf, 0, nUnconsumed);
+			bufPos = 0;
+			bufLimit = nUnconsumed;
+			int nRead = in.read(buf, bufLimit, buf.length - bufLimit);
+			if (nRead < 0)
+				eof = true;
+			else
+				bufLimit += nRead;
+		}
+		
+		
+		private String readLine() throws IOException
+		{
+			if (pos >= end)
+				return null;
+			lineStart = pos;
+			int scanFrom = bufPos;
+			while (true)
+			{
+				for (int i=scanFrom; i<bufLimit; i++)
+				{
+					if (buf[i] == '\n')
+						return consumeLine(i, i + 1);
+				}
+				if (eof)
+					return (bufPos == bufLimit)  ?  null  :  consumeLine(bufLimit, bufLimit);
+				scanFrom = bufLimit - bufPos;
+				fill();
+			}
+		}
+		
+		
+		// Line is buf[bufPos, lineEnd); consumption continues at next.
+		private String consumeLine(int lineEnd, int next)
+		{
+			int lineStartInBuf = bufPos;
+			pos += next - bufPos;
+			bufPos = next;
+			if (lineEnd > lineStartInBuf  &&  buf[lineEnd-1] == '\r')
+				lineEnd--;
+			return new String(buf, lineStartInBuf, lineEnd - lineStartInBuf);
+		}
+		
+		
+		public void close() throws IOException
+		{
+			openRanges.remove(this);
+			if (channel != null)
+				channel.close();
+			in = null;
+		}
+		
+		
+		private void closeQuietly()
+		{
+			try
+			{
+				close();
+			}
+			catch (IOException x) { }
+		}
+		
+		
+		void closeAll()
+		{
+			LineRange r;
+			while ((r = openRanges.poll()) != null)
+				r.closeQuietly();
+		}
+	}  // End of static inner class LineRange
+}
@@ -0,0 +1,221 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *    
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *    
+ */
+
+/*
+ *    ThresholdSweep.java
+ *    Copyright (C) 2018 Philip Heller
+ *    
+ */
+
+package coarbitrator;
+
+import java.io.*;
+import java.math.*;
+import java.util.*;
+
+
+//
+// Evaluates a whole vector of superiority thresholds in one pass over the rpsblast output, for tuning
+// SUPERIORITY_THRESHOLD and for ROC-style analysis. Each report's echelon work is done once (see 
+// ClassificationOutcome). A report is accepted at exactly the thresholds <= its max accepting threshold, so 
+// adding a report is a binary search, whatever the number of thresholds.
+//
+
+
+public class ThresholdSweep 
+{
+	private double[]				thresholds;				// ascending
+	private long[]					nByNAccepting;			// [k] = # reports accepted at thresholds[0..k-1] only
+	private long					nReports;
+	private boolean					keepAcceptedSets;
+	private List<String>			acceptedQueries;		// input order
+	private double[]				maxAcceptingThresholds;	// parallel to acceptedQueries
+	
+	
+	public ThresholdSweep(double[] thresholds, boolean keepAcceptedSets)
+	{
+		this.thresholds = thresholds.clone();
+		Arrays.sort(this.thresholds);
+		this.keepAcceptedSets = keepAcceptedSets;
+		nByNAccepting = new long[thresholds.length + 1];
+		if (keepAcceptedSets)
+		{
+			acceptedQueries = new ArrayList<>();
+			maxAcceptingThresholds = new double[1024];
+		}
+	}
+	
+	
+	public void add(CompactConservedDomainReport report)
+	{
+		report.computeOutcome();
+		add(report.getQuery(), report.getMaxAcceptingThreshold());
+	}
+	
+	
+	public void add(String query, ClassificationOutcome outcome)
+	{
+		add(query, outcome.getMaxAcceptingThreshold());
+	}
+	
+	
+	private void add(String query, double maxAcceptingThreshold)
+	{
+		nReports++;
+		int nAccepting = countThresholdsAtMost(maxAcceptingThreshold);
+		nByNAccepting[nAccepting]++;
+		if (keepAcceptedSets  &&  nAccepting > 0)
+		{
+			int n = acceptedQueries.size();
+			if (n == maxAcceptingThresholds.length)
+				maxAcceptingThresholds = Arrays.copyOf(maxAcceptingThresholds, 2*n);
+			maxAcceptingThresholds[n] = maxAcceptingThreshold;
+			acceptedQueries.add(query);
+		}
+	}
+	
+	
+	// Number of thresholds <= x.
+	private int countThresholdsAtMost(double x)
+	{
+		int lo = 0;
+		int hi = thresholds.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (thresholds[mid] <= x)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	
+	public double[] getThresholds()
+	{
+		return thresholds.clone();
+	}
+	
+	
+	public long getNReports()
+	{
+		return nReports;
+	}
+	
+	
+	// Parallel to getThresholds().
+	public long[] getAcceptCounts()
+	{
+		long[] ret = new long[thresholds.length];
+		long nAccepted = 0;
+		for (int i=thresholds.length-1; i>=0; i--)
+		{
+			nAccepted += nByNAccepting[i+1];
+			ret[i] = nAccepted;
+		}
+		return ret;
+	}
+	
+	
+	// Accepted queries at thresholds[thresholdIndex], in input order. Requires keepAcceptedSets.
+	public List<String> getAcceptedQueries(int thresholdIndex)
+	{
+		if (!keepAcceptedSets)
+			throw new IllegalStateException("Accepted sets weren't kept");
+		double thresh = thresholds[thresholdIndex];
+		List<String> ret = new ArrayList<>();
+		for (int i=0; i<acceptedQueries.size(); i++)
+			if (thresh <= maxAcceptingThresholds[i])
+				ret.add(acceptedQueries.get(i));
+		return ret;
+	}
+	
+	
+	public void writeAcceptCounts(File f) throws IOException
+	{
+		long[] counts = getAcceptCounts();
+		try (FileWriter fw = new FileWriter(f))
+		{
+			fw.write("Superiority threshold,Accepted,Rejected\n");
+			for (int i=0; i<thresholds.length; i++)
+				fw.write(thresholds[i] + "," + counts[i] + "," + (nReports - counts[i]) + "\n");
+		}
+	}
+	
+	
+	// 1 file per threshold, in the same format as ProcessPhase2Results output.
+	public void writeAcceptedSets(File dirf) throws IOException
+	{
+		if (!dirf.exists()  &&  !dirf.mkdirs())
+			throw new IOException("Can't create directory " + dirf.getAbsolutePath());
+		for (int i=0; i<thresholds.length; i++)
+			ProcessPhase2Results.writeAcceptedQueries(new File(dirf, "coarbitrator_out_" + thresholds[i] + ".csv"), getAcceptedQueries(i));
+	}
+	
+	
+	// Comma-separated list (e.g. "0.5,0.9,2"), or start:end:step (e.g. "0:10:0.1", end inclusive). Ranges are
+	// computed in decimal, so each threshold is the double nearest its decimal value (0.3, not 
+	// 0.30000000000000004) and prints that way in counts files and accepted-set file names.
+	static double[] parseThresholds(String spec)
+	{
+		if (spec.contains(":"))
+		{
+			String[] pieces = spec.split(":");
+			if (pieces.length != 3)
+				throw new IllegalArgumentException("Threshold range must be start:end:step: " + spec);
+			BigDecimal start = new BigDecimal(pieces[0].trim());
+			BigDecimal end = new BigDecimal(pieces[1].trim());
+			BigDecimal step = new BigDecimal(pieces[2].trim());
+			if (step.signum() <= 0  ||  end.compareTo(start) < 0)
+				throw new IllegalArgumentException("Threshold range needs step > 0 and end >= start: " + spec);
+			int n = 1 + end.subtract(start).divide(step, 0, RoundingMode.FLOOR).intValueExact();
+			double[] ret = new double[n];
+			for (int i=0; i<n; i++)
+				ret[i] = start.add(step.multiply(BigDecimal.valueOf(i))).doubleValue();
+			return ret;
+		}
+		return Arrays.stream(spec.split(",")).mapToDouble(Double::parseDouble).toArray();
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3)
+		{
+			sop("Usage: java coarbitrator.ThresholdSweep rpsblast_out.csv thresholds counts_out.csv [accepted_sets_dir]");
+			sop("  thresholds is a comma-separated list, or start:end:step");
+			System.exit(1);
+		}
+		sop("START");
+		File rpsoutf = CompressedInputs.resolve(new File(args[0]));
+		ThresholdSweep sweep = new ThresholdSweep(parseThresholds(args[1]), args.length > 3);
+		try
+		(
+			ConserverDomainReportReader cdrr = new ConserverDomainReportReader(rpsoutf);
+		)
+		{
+			CompactConservedDomainReport report = new CompactConservedDomainReport();
+			while (cdrr.readReport(report))
+				sweep.add(report);
+		}
+		sweep.writeAcceptCounts(new File(args[2]));
+		if (args.length > 3)
+			sweep.writeAcceptedSets(new File(args[3]));
+		sop(sweep.getNReports() + " reports, " + sweep.thresholds.length + " thresholds");
+		sop("DONE");
+	}
+}
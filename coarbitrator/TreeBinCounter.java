@@ -28,6 +28,12 @@ public class TreeBinCounter<K> extends TreeMap<K, long[]> implements java.io.Ser
 	
 	
 	public TreeBinCounter()			{ }
+	
+	
+	public TreeBinCounter(Comparator<? super K> comparator)
+	{
+		super(comparator);
+	}
 
 
 	public String toString()
@@ -53,6 +59,12 @@ public class TreeBinCounter<K> extends TreeMap<K, long[]> implements java.io.Ser
 	
 	
 	public void bumpCountForBin(K bin, int delta)
+	{
+		bumpCountForBin(bin, (long)delta);
+	}
+	
+	
+	public void bumpCountForBin(K bin, long delta)
 	{
 		long[] count = get(bin);
 		if (count == null)
@@ -75,33 +87,44 @@ public class TreeBinCounter<K> extends TreeMap<K, long[]> implements java.io.Ser
 	}
 	
 	
-	public Vector<K> keysByPopulationAscending()
+	// Ties are in key order.
+	public List<K> keysByPopulationAscending()
 	{
-		Map<Long, Vector<K>> popToKeySet = new TreeMap<Long, Vector<K>>();
-		for (K key: keySet())
-		{
-			long pop = get(key)[0];
-			Vector<K> keysForPop = popToKeySet.get(pop);
-			if (keysForPop == null)
-			{
-				keysForPop = new Vector<K>();
-				popToKeySet.put(pop, keysForPop);
-			}
-			keysForPop.add(key);
-		}
-		Vector<K> ret = new Vector<K>(size());
-		for (Vector<K> addMe: popToKeySet.values())
-			ret.addAll(addMe);
-		return ret;
+		return byIndex(PopulationOrder.ascending(countsInKeyOrder(), size()));
 	}
 	
 	
-	public Vector<K> keysByPopulationDescending()
+	// Exact reverse of keysByPopulationAscending().
+	public List<K> keysByPopulationDescending()
 	{
-		Vector<K> ret = new Vector<K>(size());
-		Vector<K> ascending = keysByPopulationAscending();
-		for (int i=ascending.size()-1; i>=0; i--)
-			ret.add(ascending.get(i));
+		return byIndex(PopulationOrder.descending(countsInKeyOrder(), size()));
+	}
+	
+	
+	// The first k of keysByPopulationDescending(), without sorting all the bins.
+	public List<K> topK(int k)
+	{
+		return byIndex(PopulationOrder.topK(countsInKeyOrder(), size(), k));
+	}
+	
+	
+	private long[] countsInKeyOrder()
+	{
+		long[] counts = new long[size()];
+		int n = 0;
+		for (long[] count: values())
+			counts[n++] = count[0];
+		return counts;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private List<K> byIndex(int[] indices)
+	{
+		Object[] keys = keySet().toArray();
+		List<K> ret = new ArrayList<K>(indices.length);
+		for (int index: indices)
+			ret.add((K)keys[index]);
 		return ret;
 	}
 	
@@ -115,17 +138,41 @@ public class TreeBinCounter<K> extends TreeMap<K, long[]> implements java.io.Ser
 	}
 	
 	
+	// Returns a new counter whose counts are the sums of this counter's and that's. Neither input changes.
 	public TreeBinCounter<K> combineWith(TreeBinCounter<K> that)
 	{
-		TreeBinCounter<K> ret = new TreeBinCounter<K>();
-		for (K k: keySet())
-			ret.bumpCountForBin(k);
-		for (K k: that.keySet())
-			ret.bumpCountForBin(k);
+		TreeBinCounter<K> ret = new TreeBinCounter<K>(comparator());
+		ret.add(this);
+		ret.add(that);
 		return ret;
 	}
 	
 	
+	// Adds that's counts to this counter's.
+	public void add(TreeBinCounter<K> that)
+	{
+		for (Map.Entry<K, long[]> entry: that.entrySet())
+			bumpCountForBin(entry.getKey(), entry.getValue()[0]);
+	}
+	
+	
+	// Sums the counts in place: the smaller counter is added into the larger one, which is returned. The 
+	// smaller one is unchanged, but shouldn't be used as an independent counter afterward.
+	public TreeBinCounter<K> mergeWith(TreeBinCounter<K> that)
+	{
+		if (this.size() >= that.size())
+		{
+			this.add(that);
+			return this;
+		}
+		else
+		{
+			that.add(this);
+			return that;
+		}
+	}
+	
+	
 	public K getMinKey()
 	{
 		return keySet().iterator().next();